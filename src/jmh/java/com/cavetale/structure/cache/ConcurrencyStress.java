@@ -0,0 +1,180 @@
+package com.cavetale.structure.cache;
+
+import com.cavetale.core.struct.Cuboid;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bukkit.configuration.MemoryConfiguration;
+
+/**
+ * Stress test of queries off the owner thread.  The owner thread
+ * keeps changing the cache: it loads regions, adds structures and
+ * evicts everything it can on a tight budget.  Meanwhile the reader
+ * threads query at random and check every result against the
+ * structures which were in the database from the start.  Those must
+ * always be found, no structure may be listed twice, and everything
+ * listed must match the query.
+ *
+ * Usage: ConcurrencyStress [seconds] [readers]
+ *
+ * Run it with the jmh profile:
+ * {@code mvn -P jmh test-compile exec:exec -Djmh.main=com.cavetale.structure.cache.ConcurrencyStress -Djmh.args=60}
+ *
+ * Exits with status 1 if any check failed.
+ */
+public final class ConcurrencyStress {
+    private static final int SIZE = 8;
+    private static final int DENSITY = 16;
+    private static final double MINESHAFTS = 0.2;
+    private static final int MAX_ADDED = 500;
+    private static final int MAX_REPORTED = 20;
+    private final int blocks = SIZE << 9;
+    private final List<Structure> base = new ArrayList<>();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile boolean running = true;
+    private StructureWorld world;
+
+    private ConcurrencyStress() { }
+
+    public static void main(String[] args) throws Exception {
+        final int seconds = args.length >= 1 ? Integer.parseInt(args[0]) : 30;
+        final int readerCount = args.length >= 2 ? Integer.parseInt(args[1]) : 4;
+        final long failures = new ConcurrencyStress().run(seconds, readerCount);
+        System.exit(failures == 0L ? 0 : 1);
+    }
+
+    private long run(int seconds, int readerCount) throws Exception {
+        // The owner adds structures, so work on a copy
+        final File file = File.createTempFile("structures-stress-", ".db");
+        Files.copy(SyntheticWorld.getFile(SIZE, DENSITY, MINESHAFTS).toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        final CountDownLatch enabled = new CountDownLatch(1);
+        final Thread owner = new Thread(() -> {
+                world = new StructureWorld(SyntheticWorld.WORLD_NAME);
+                world.enable(new MemoryConfiguration(), file);
+                world.setEvictionSettings(new EvictionSettings(EvictionPolicy.LRU, 0L, 4, 0L, new long[0]));
+                for (int regionZ = 0; regionZ < SIZE; regionZ += 1) {
+                    for (int regionX = 0; regionX < SIZE; regionX += 1) {
+                        for (Structure structure : world.getDataStore().getStructures(regionX, regionZ)) {
+                            if (structure.getBoundingBox().ax >> 9 == regionX && structure.getBoundingBox().az >> 9 == regionZ) {
+                                base.add(structure);
+                            }
+                        }
+                    }
+                }
+                enabled.countDown();
+                runOwner();
+            }, "Owner");
+        owner.start();
+        enabled.await();
+        System.out.println("Checking " + base.size() + " structures with " + readerCount + " readers for " + seconds + "s");
+        final List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < readerCount; i += 1) {
+            final long seed = SyntheticWorld.SEED + i;
+            final Thread thread = new Thread(() -> runReader(new Random(seed)), "Reader-" + i);
+            thread.start();
+            readers.add(thread);
+        }
+        Thread.sleep(seconds * 1000L);
+        running = false;
+        for (Thread thread : readers) thread.join();
+        owner.join();
+        world.disable();
+        System.out.println(queries.get() + " queries, " + failures.get() + " failures");
+        file.delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+        return failures.get();
+    }
+
+    private void runOwner() {
+        final Random random = new Random(SyntheticWorld.SEED);
+        int added = 0;
+        for (int i = 0; running; i += 1) {
+            world.at(random.nextInt(blocks), random.nextInt(100), random.nextInt(blocks));
+            if ((i & 15) == 0) world.prune();
+            if ((i & 63) == 0 && added < MAX_ADDED) {
+                world.addStructures(List.of(SyntheticWorld.structure(random, random.nextInt(SIZE), random.nextInt(SIZE))));
+                added += 1;
+            }
+        }
+    }
+
+    private void runReader(Random random) {
+        while (running) {
+            try {
+                switch (random.nextInt(3)) {
+                case 0: checkAt(random.nextInt(blocks), random.nextInt(100), random.nextInt(blocks)); break;
+                case 1: checkAllAt(random.nextInt(blocks), random.nextInt(100), random.nextInt(blocks)); break;
+                default: {
+                    final int x = random.nextInt(blocks);
+                    final int z = random.nextInt(blocks);
+                    checkWithin(new Cuboid(x, 0, z, x + random.nextInt(600), 255, z + random.nextInt(600)));
+                    break;
+                }
+                }
+            } catch (RuntimeException re) {
+                fail("exception " + re);
+            }
+            queries.incrementAndGet();
+        }
+    }
+
+    private static boolean matchesAt(Structure structure, int x, int y, int z) {
+        return structure.boundingBox.contains(x, y, z)
+            && (!structure.hasChildren() || structure.getChildAt(x, y, z) != null);
+    }
+
+    private void checkAt(int x, int y, int z) {
+        final Structure result = world.at(x, y, z);
+        if (result != null) {
+            if (!matchesAt(result, x, y, z)) fail("at " + x + "," + y + "," + z + ": wrong structure " + result.getId());
+            return;
+        }
+        for (Structure structure : base) {
+            if (matchesAt(structure, x, y, z)) {
+                fail("at " + x + "," + y + "," + z + ": missing " + structure.getId());
+                return;
+            }
+        }
+    }
+
+    private void checkAllAt(int x, int y, int z) {
+        final Set<Integer> ids = new HashSet<>();
+        for (Structure structure : world.allAt(x, y, z)) {
+            if (!ids.add(structure.getId())) fail("allAt " + x + "," + y + "," + z + ": duplicate " + structure.getId());
+            if (!structure.boundingBox.contains(x, y, z)) fail("allAt " + x + "," + y + "," + z + ": wrong structure " + structure.getId());
+        }
+        for (Structure structure : base) {
+            if (structure.boundingBox.contains(x, y, z) && !ids.contains(structure.getId())) {
+                fail("allAt " + x + "," + y + "," + z + ": missing " + structure.getId());
+            }
+        }
+    }
+
+    private void checkWithin(Cuboid cuboid) {
+        final Set<Integer> ids = new HashSet<>();
+        world.forEachWithin(cuboid, structure -> {
+                if (!ids.add(structure.getId())) fail("within " + cuboid + ": duplicate " + structure.getId());
+                if (!cuboid.overlaps(structure.boundingBox)) fail("within " + cuboid + ": wrong structure " + structure.getId());
+            });
+        for (Structure structure : base) {
+            if (cuboid.overlaps(structure.boundingBox) && !ids.contains(structure.getId())) {
+                fail("within " + cuboid + ": missing " + structure.getId());
+            }
+        }
+    }
+
+    private void fail(String message) {
+        if (failures.incrementAndGet() <= MAX_REPORTED) {
+            System.out.println("FAIL " + message);
+        }
+    }
+}
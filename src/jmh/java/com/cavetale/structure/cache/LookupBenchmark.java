@@ -0,0 +1,135 @@
+package com.cavetale.structure.cache;
+
+import com.cavetale.core.struct.Cuboid;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.bukkit.NamespacedKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Queries against a fully cached world.  All regions are loaded
+ * during setup, so only the lookups are measured.  The query points
+ * are random and mostly miss, like block checks in the wild.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LookupBenchmark {
+    private static final int POINTS = 4096;
+    /** Size of the cuboid for within, in blocks. */
+    private static final int WITHIN_SIZE = 128;
+    private static final NamespacedKey MINESHAFT = NamespacedKey.minecraft("mineshaft");
+    private static final StructureTypeSet MINESHAFT_TYPES = StructureTypeSet.of(MINESHAFT);
+    @Param({"16"})
+    public int size;
+    @Param({"8", "32"})
+    public int density;
+    @Param({"0.1", "0.5"})
+    public double mineshafts;
+    private StructureWorld world;
+    private final int[] xs = new int[POINTS];
+    private final int[] ys = new int[POINTS];
+    private final int[] zs = new int[POINTS];
+    private final Cuboid[] cuboids = new Cuboid[POINTS];
+    /** Structures for getChildAt, each with a point in its bounding box. */
+    private final Structure[] parents = new Structure[POINTS];
+    private final int[] childXs = new int[POINTS];
+    private final int[] childYs = new int[POINTS];
+    private final int[] childZs = new int[POINTS];
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        world = SyntheticWorld.open(size, density, mineshafts);
+        while (!world.getIndex().isReady() || !world.getColumns().isReady()) Thread.sleep(10L);
+        for (int regionZ = 0; regionZ < size; regionZ += 1) {
+            for (int regionX = 0; regionX < size; regionX += 1) {
+                world.getRegion(regionX, regionZ);
+            }
+        }
+        final Random random = new Random(SyntheticWorld.SEED);
+        final int blocks = size << 9;
+        for (int i = 0; i < POINTS; i += 1) {
+            xs[i] = random.nextInt(blocks);
+            ys[i] = random.nextInt(100);
+            zs[i] = random.nextInt(blocks);
+            final int x = random.nextInt(blocks - WITHIN_SIZE);
+            final int z = random.nextInt(blocks - WITHIN_SIZE);
+            cuboids[i] = new Cuboid(x, 0, z, x + WITHIN_SIZE - 1, 255, z + WITHIN_SIZE - 1);
+        }
+        final List<Structure> loaded = world.allLoaded();
+        for (int i = 0; i < POINTS; i += 1) {
+            final Structure structure = loaded.get(random.nextInt(loaded.size()));
+            final Cuboid bb = structure.boundingBox;
+            parents[i] = structure;
+            childXs[i] = bb.ax + random.nextInt(bb.bx - bb.ax + 1);
+            childYs[i] = bb.ay + random.nextInt(bb.by - bb.ay + 1);
+            childZs[i] = bb.az + random.nextInt(bb.bz - bb.az + 1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        world.disable();
+    }
+
+    private int next() {
+        index = (index + 1) & (POINTS - 1);
+        return index;
+    }
+
+    @Benchmark
+    public Structure at() {
+        final int i = next();
+        return world.at(xs[i], ys[i], zs[i]);
+    }
+
+    @Benchmark
+    public List<Structure> allAt() {
+        final int i = next();
+        return world.allAt(xs[i], ys[i], zs[i]);
+    }
+
+    @Benchmark
+    public List<Structure> within() {
+        return world.within(cuboids[next()]);
+    }
+
+    @Benchmark
+    public List<Structure> withinOfType() {
+        return world.within(cuboids[next()], MINESHAFT_TYPES);
+    }
+
+    @Benchmark
+    public int countWithin() {
+        return world.countWithin(cuboids[next()], null, null);
+    }
+
+    @Benchmark
+    public List<StructureCenter> nearest() {
+        final int i = next();
+        return world.nearest(xs[i], zs[i], 8, MINESHAFT, false);
+    }
+
+    @Benchmark
+    public StructurePart getChildAt() {
+        final int i = next();
+        return parents[i].getChildAt(childXs[i], childYs[i], childZs[i]);
+    }
+}
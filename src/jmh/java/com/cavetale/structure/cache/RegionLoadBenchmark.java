@@ -0,0 +1,84 @@
+package com.cavetale.structure.cache;
+
+import com.cavetale.core.struct.Vec2i;
+import com.cavetale.structure.sqlite.SQLiteDataStore;
+import com.cavetale.structure.sqlite.SQLiteDataStore.RegionStructures;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Region loads straight from the data store, in batches of one or
+ * more regions, cycling through the whole world.  The cold variant
+ * decodes every structure, the cached one only reads the ids, which
+ * is what happens when the neighboring regions are already cached.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegionLoadBenchmark {
+    @Param({"16"})
+    public int size;
+    @Param({"8", "32"})
+    public int density;
+    @Param({"0.1", "0.5"})
+    public double mineshafts;
+    @Param({"1", "16"})
+    public int batch;
+    private SQLiteDataStore dataStore;
+    private final List<List<Vec2i>> batches = new ArrayList<>();
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dataStore = new SQLiteDataStore(SyntheticWorld.WORLD_NAME, SyntheticWorld.getFile(size, density, mineshafts), 1);
+        dataStore.enable();
+        List<Vec2i> current = new ArrayList<>();
+        for (int regionZ = 0; regionZ < size; regionZ += 1) {
+            for (int regionX = 0; regionX < size; regionX += 1) {
+                current.add(Vec2i.of(regionX, regionZ));
+                if (current.size() == batch) {
+                    batches.add(current);
+                    current = new ArrayList<>();
+                }
+            }
+        }
+        if (!current.isEmpty()) batches.add(current);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataStore.disable();
+    }
+
+    private List<Vec2i> next() {
+        index = (index + 1) % batches.size();
+        return batches.get(index);
+    }
+
+    @Benchmark
+    public List<RegionStructures> loadRegions() {
+        return dataStore.loadRegions(next(), id -> false);
+    }
+
+    @Benchmark
+    public List<RegionStructures> loadRegionsCached() {
+        return dataStore.loadRegions(next(), id -> true);
+    }
+}
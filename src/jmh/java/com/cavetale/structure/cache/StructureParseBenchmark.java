@@ -0,0 +1,54 @@
+package com.cavetale.structure.cache;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Structure construction, either by parsing the vanilla JSON or
+ * from the binary children column.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StructureParseBenchmark {
+    @Param({"village", "mineshaft"})
+    public String type;
+    private Structure template;
+    private byte[] children;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Random random = new Random(SyntheticWorld.SEED);
+        template = type.equals("mineshaft")
+            ? SyntheticWorld.mineshaft(random, 0, 0)
+            : SyntheticWorld.structure(random, 0, 0);
+        children = StructureChildren.encode(template.getChildren());
+    }
+
+    @Benchmark
+    public Structure parseJson() {
+        return new Structure(template.worldName, template.key, template.chunk, template.boundingBox,
+                             template.json, false);
+    }
+
+    @Benchmark
+    public Structure decodeChildren() {
+        return new Structure(template.worldName, template.key, template.chunk, template.boundingBox,
+                             template.json, false, StructureChildren.decode(children));
+    }
+}
@@ -0,0 +1,189 @@
+package com.cavetale.structure.cache;
+
+import com.cavetale.core.struct.Cuboid;
+import com.cavetale.core.struct.Vec2i;
+import com.cavetale.structure.sqlite.SQLiteDataStore;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.bukkit.NamespacedKey;
+import org.bukkit.configuration.MemoryConfiguration;
+
+/**
+ * Generate structures.db files for the benchmarks.  The structures
+ * are random but reproducible: the same parameters always yield the
+ * same file, which is kept in the temp directory and reused by later
+ * runs.
+ *
+ * The world covers size by size regions starting at region 0, 0.
+ * Each region gets density structures.  Most are small, like
+ * villages or outposts, with a few pieces.  The mineshaft share of
+ * them are mineshafts instead, which often cross region borders and
+ * have hundreds of corridor pieces.
+ */
+public final class SyntheticWorld {
+    public static final String WORLD_NAME = "benchmark";
+    public static final long SEED = 0x5ca1ab1eL;
+    private static final String[] TYPES = {
+        "village_plains",
+        "pillager_outpost",
+        "desert_pyramid",
+        "ruined_portal",
+        "shipwreck",
+        "ocean_ruin_cold",
+    };
+    private static final String[] MINESHAFT_PIECES = {
+        "minecraft:mscorridor",
+        "minecraft:mscorridor",
+        "minecraft:mscorridor",
+        "minecraft:mscrossing",
+        "minecraft:msstairs",
+    };
+    private static final int BATCH_SIZE = 1000;
+
+    private SyntheticWorld() { }
+
+    /**
+     * Open a headless StructureWorld on the file with these
+     * parameters.  Nothing is cached yet.
+     */
+    public static StructureWorld open(int size, int density, double mineshaftShare) {
+        final StructureWorld result = new StructureWorld(WORLD_NAME);
+        result.enable(new MemoryConfiguration(), getFile(size, density, mineshaftShare));
+        return result;
+    }
+
+    /**
+     * Get the file with these parameters, generating it if necessary.
+     */
+    public static File getFile(int size, int density, double mineshaftShare) {
+        final String name = "structures-" + size + "-" + density + "-" + Math.round(mineshaftShare * 100.0) + ".db";
+        final File file = new File(System.getProperty("java.io.tmpdir"), name);
+        if (file.exists()) return file;
+        final File tmp = new File(file.getPath() + ".tmp");
+        tmp.delete();
+        generate(tmp, size, density, mineshaftShare);
+        if (!tmp.renameTo(file)) {
+            throw new IllegalStateException("Cannot rename " + tmp + " to " + file);
+        }
+        return file;
+    }
+
+    private static void generate(File file, int size, int density, double mineshaftShare) {
+        final SQLiteDataStore dataStore = new SQLiteDataStore(WORLD_NAME, file, 1);
+        dataStore.enable();
+        try {
+            final Random random = new Random(SEED);
+            final List<Structure> batch = new ArrayList<>(BATCH_SIZE);
+            for (int regionZ = 0; regionZ < size; regionZ += 1) {
+                for (int regionX = 0; regionX < size; regionX += 1) {
+                    for (int i = 0; i < density; i += 1) {
+                        batch.add(random.nextDouble() < mineshaftShare
+                                  ? mineshaft(random, regionX, regionZ)
+                                  : structure(random, regionX, regionZ));
+                        if (batch.size() >= BATCH_SIZE) {
+                            dataStore.addStructures(batch);
+                            batch.clear();
+                        }
+                    }
+                }
+            }
+            if (!batch.isEmpty()) dataStore.addStructures(batch);
+        } finally {
+            dataStore.disable();
+        }
+    }
+
+    /**
+     * Make a small structure of 2 to 12 pieces within 64 blocks of a
+     * random spot in the region.
+     */
+    static Structure structure(Random random, int regionX, int regionZ) {
+        final int x = (regionX << 9) + random.nextInt(512);
+        final int y = 60 + random.nextInt(20);
+        final int z = (regionZ << 9) + random.nextInt(512);
+        final String type = TYPES[random.nextInt(TYPES.length)];
+        final int count = 2 + random.nextInt(11);
+        final List<StructurePart> children = new ArrayList<>(count);
+        for (int i = 0; i < count; i += 1) {
+            final int ax = x + random.nextInt(48);
+            final int ay = y + random.nextInt(4);
+            final int az = z + random.nextInt(48);
+            children.add(new StructurePart("minecraft:jigsaw",
+                                           new Cuboid(ax, ay, az,
+                                                      ax + 4 + random.nextInt(12),
+                                                      ay + 4 + random.nextInt(8),
+                                                      az + 4 + random.nextInt(12))));
+        }
+        return make(NamespacedKey.minecraft(type), children);
+    }
+
+    /**
+     * Make a mineshaft from a random walk of 100 to 400 corridors
+     * within 96 blocks of a random spot in the region.
+     */
+    static Structure mineshaft(Random random, int regionX, int regionZ) {
+        final int originX = (regionX << 9) + random.nextInt(512);
+        final int originY = 10 + random.nextInt(40);
+        final int originZ = (regionZ << 9) + random.nextInt(512);
+        final int count = 100 + random.nextInt(301);
+        final List<StructurePart> children = new ArrayList<>(count);
+        int x = originX;
+        int y = originY;
+        int z = originZ;
+        for (int i = 0; i < count; i += 1) {
+            final String id = MINESHAFT_PIECES[random.nextInt(MINESHAFT_PIECES.length)];
+            final int length = 5 + random.nextInt(26);
+            final int dx;
+            final int dz;
+            switch (random.nextInt(4)) {
+            case 0: dx = length; dz = 0; break;
+            case 1: dx = -length; dz = 0; break;
+            case 2: dx = 0; dz = length; break;
+            default: dx = 0; dz = -length; break;
+            }
+            final int nx = Math.max(originX - 96, Math.min(originX + 96, x + dx));
+            final int nz = Math.max(originZ - 96, Math.min(originZ + 96, z + dz));
+            children.add(new StructurePart(id, new Cuboid(Math.min(x, nx) - 1, y, Math.min(z, nz) - 1,
+                                                          Math.max(x, nx) + 1, y + 2, Math.max(z, nz) + 1)));
+            x = nx;
+            z = nz;
+            y = Math.max(originY - 20, Math.min(originY + 20, y + random.nextInt(9) - 4));
+        }
+        return make(NamespacedKey.minecraft("mineshaft"), children);
+    }
+
+    /**
+     * Wrap the pieces in a structure with the vanilla JSON format,
+     * where the bounding box is the union of all pieces.
+     */
+    private static Structure make(NamespacedKey key, List<StructurePart> children) {
+        int ax = Integer.MAX_VALUE;
+        int ay = Integer.MAX_VALUE;
+        int az = Integer.MAX_VALUE;
+        int bx = Integer.MIN_VALUE;
+        int by = Integer.MIN_VALUE;
+        int bz = Integer.MIN_VALUE;
+        final StringBuilder json = new StringBuilder();
+        json.append("{\"id\":\"").append(key).append("\",\"Children\":[");
+        for (int i = 0; i < children.size(); i += 1) {
+            final StructurePart child = children.get(i);
+            final Cuboid bb = child.boundingBox;
+            ax = Math.min(ax, bb.ax);
+            ay = Math.min(ay, bb.ay);
+            az = Math.min(az, bb.az);
+            bx = Math.max(bx, bb.bx);
+            by = Math.max(by, bb.by);
+            bz = Math.max(bz, bb.bz);
+            if (i > 0) json.append(',');
+            json.append("{\"id\":\"").append(child.id).append("\",\"BB\":[")
+                .append(bb.ax).append(',').append(bb.ay).append(',').append(bb.az).append(',')
+                .append(bb.bx).append(',').append(bb.by).append(',').append(bb.bz).append("]}");
+        }
+        json.append("]}");
+        final Cuboid boundingBox = new Cuboid(ax, ay, az, bx, by, bz);
+        final Vec2i chunk = Vec2i.of(ax >> 4, az >> 4);
+        return new Structure(WORLD_NAME, key, chunk, boundingBox, json.toString(), false, children);
+    }
+}
@@ -6,6 +6,7 @@ import com.cavetale.structure.cache.Structure;
 import com.cavetale.structure.cache.StructurePart;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 import lombok.RequiredArgsConstructor;
 import org.bukkit.NamespacedKey;
 import org.bukkit.World;
@@ -17,32 +18,52 @@ public final class CoreStructures implements Structures {
 
     @Override
     public NamespacedKey structureKeyAt(Block block) {
-        Structure structure = plugin.getStructureCache().at(block);
+        return structureKeyAt(block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+
+    public NamespacedKey structureKeyAt(World world, int x, int y, int z) {
+        Structure structure = plugin.getStructureCache().at(world, x, y, z);
         return structure != null ? structure.getKey() : null;
     }
 
     @Override
     public String structurePartNameAt(Block block) {
-        Structure structure = plugin.getStructureCache().at(block);
+        return structurePartNameAt(block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+
+    public String structurePartNameAt(World world, int x, int y, int z) {
+        Structure structure = plugin.getStructureCache().at(world, x, y, z);
         if (structure == null) return null;
-        StructurePart part = structure.getChildAt(block);
+        StructurePart part = structure.getChildAt(x, y, z);
         return part != null ? part.getId() : null;
     }
 
     @Override
     public boolean structureAt(Block block) {
-        return plugin.getStructureCache().at(block) != null;
+        return structureAt(block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+
+    public boolean structureAt(World world, int x, int y, int z) {
+        return plugin.getStructureCache().at(world, x, y, z) != null;
     }
 
     @Override
     public boolean structurePartAt(Block block) {
-        Structure structure = plugin.getStructureCache().at(block);
-        return structure != null && structure.getChildAt(block) != null;
+        return structurePartAt(block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+
+    public boolean structurePartAt(World world, int x, int y, int z) {
+        Structure structure = plugin.getStructureCache().at(world, x, y, z);
+        return structure != null && structure.getChildAt(x, y, z) != null;
     }
 
     @Override
     public com.cavetale.core.structure.Structure getStructureAt(Block block) {
-        Structure structure = plugin.getStructureCache().at(block);
+        return getStructureAt(block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+
+    public com.cavetale.core.structure.Structure getStructureAt(World world, int x, int y, int z) {
+        Structure structure = plugin.getStructureCache().at(world, x, y, z);
         return structure;
     }
 
@@ -58,9 +79,11 @@ public final class CoreStructures implements Structures {
     @Override
     public List<com.cavetale.core.structure.Structure> getStructuresWithin(World world, Cuboid cuboid) {
         List<com.cavetale.core.structure.Structure> result = new ArrayList<>();
-        for (Structure it : plugin.getStructureCache().within(world.getName(), cuboid)) {
-            result.add(it);
-        }
+        forEachStructureWithin(world, cuboid, result::add);
         return result;
     }
+
+    public void forEachStructureWithin(World world, Cuboid cuboid, Consumer<? super com.cavetale.core.structure.Structure> consumer) {
+        plugin.getStructureCache().forEachWithin(world.getName(), cuboid, consumer);
+    }
 }
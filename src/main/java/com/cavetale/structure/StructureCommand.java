@@ -5,18 +5,35 @@ import com.cavetale.core.command.CommandArgCompleter;
 import com.cavetale.core.command.CommandNode;
 import com.cavetale.core.command.CommandWarn;
 import com.cavetale.core.struct.Cuboid;
+import com.cavetale.core.struct.Vec2i;
 import com.cavetale.core.struct.Vec3i;
 import com.cavetale.core.util.Json;
+import com.cavetale.structure.cache.EvictionReason;
+import com.cavetale.structure.cache.EvictionSettings;
 import com.cavetale.structure.cache.Structure;
+import com.cavetale.structure.cache.StructureCache;
+import com.cavetale.structure.cache.StructureCenter;
 import com.cavetale.structure.cache.StructurePart;
+import com.cavetale.structure.cache.StructureRegion;
 import com.cavetale.structure.cache.StructureWorld;
+import com.cavetale.structure.metrics.LatencyHistogram;
+import com.cavetale.structure.metrics.StructureMetrics;
+import com.cavetale.structure.sqlite.SQLiteDataStore;
+import com.cavetale.structure.sqlite.StructureSnapshot;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import net.kyori.adventure.text.Component;
+import org.bukkit.Bukkit;
+import org.bukkit.NamespacedKey;
 import org.bukkit.Particle;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
@@ -50,6 +67,14 @@ public final class StructureCommand extends AbstractCommand<StructurePlugin> {
             .description("Print world info")
             .completers(CommandArgCompleter.supplyList(() -> List.copyOf(plugin.getStructureCache().getWorlds().keySet())))
             .senderCaller(this::worldInfo);
+        rootNode.addChild("cacheinfo").arguments("<world>")
+            .description("Print pinned and evictable cache entries")
+            .completers(CommandArgCompleter.supplyList(() -> List.copyOf(plugin.getStructureCache().getWorlds().keySet())))
+            .senderCaller(this::cacheInfo);
+        rootNode.addChild("metrics").arguments("[reset]")
+            .description("Print cache and database metrics")
+            .completers(CommandArgCompleter.supplyList(() -> List.of("reset")))
+            .senderCaller(this::metrics);
         rootNode.addChild("liststructuretypes").arguments("<world>")
             .completers(CommandArgCompleter.supplyList(() -> List.copyOf(plugin.getStructureCache().getWorlds().keySet())))
             .description("List all structure types")
@@ -69,9 +94,26 @@ public final class StructureCommand extends AbstractCommand<StructurePlugin> {
             .completers(CommandArgCompleter.integer(i -> i > 0))
             .description("Find structures nearby")
             .playerCaller(this::nearby);
+        rootNode.addChild("nearest").arguments("<type> [count]")
+            .completers(CommandArgCompleter.supplyList(this::indexedTypes),
+                        CommandArgCompleter.integer(i -> i > 0))
+            .description("Find the nearest undiscovered structures of a type")
+            .playerCaller(this::nearest);
         rootNode.addChild("biome").denyTabCompletion()
             .description("Get biome")
             .playerCaller(this::biome);
+        // Benchmark Commands
+        final CommandNode benchNode = rootNode.addChild("bench")
+            .description("Benchmark commands");
+        benchNode.addChild("regionload").arguments("<world> [count]")
+            .description("Time region loads from the data store")
+            .completers(CommandArgCompleter.supplyList(() -> List.copyOf(plugin.getStructureCache().getWorlds().keySet())),
+                        CommandArgCompleter.integer(i -> i > 0))
+            .senderCaller(this::benchRegionLoad);
+        benchNode.addChild("lookup").arguments("[iterations]")
+            .description("Time and count allocations of lookups here")
+            .completers(CommandArgCompleter.integer(i -> i > 0))
+            .playerCaller(this::benchLookup);
         // SQLite Commands
         final CommandNode sqliteNode = rootNode.addChild("sqlite")
             .description("SQLite commands");
@@ -118,6 +160,102 @@ public final class StructureCommand extends AbstractCommand<StructurePlugin> {
         sender.sendMessage(textOfChildren(text("World ", GRAY), text(structureWorld.getWorldName())));
         sender.sendMessage(textOfChildren(text("  Cached Structures ", GRAY), text(structureWorld.getStructureCache().size())));
         sender.sendMessage(textOfChildren(text("  Cached Regions ", GRAY), text(structureWorld.getRegionCache().size())));
+        if (structureWorld.getPopulatedRegions().isReady()) {
+            sender.sendMessage(textOfChildren(text("  Populated Regions ", GRAY), text(structureWorld.getPopulatedRegions().size())));
+        }
+        final SQLiteDataStore dataStore = structureWorld.getDataStore();
+        final StructureSnapshot snapshot = dataStore != null ? dataStore.getSnapshot() : null;
+        if (snapshot != null) {
+            sender.sendMessage(textOfChildren(text("  Snapshot ", GRAY), text(snapshot.getRegionCount() + " regions"),
+                                              text(" version ", GRAY), text(snapshot.getDataVersion()),
+                                              text(" changed ", GRAY), text(dataStore.getDirtyRegionCount(), YELLOW)));
+        }
+        return true;
+    }
+
+    /**
+     * Regions are pinned by loaded chunks.  Structures held by at
+     * least one pinned region are pinned, all others will be evicted
+     * along with their regions once those are idle.
+     */
+    private boolean cacheInfo(CommandSender sender, String[] args) {
+        if (args.length != 1) return false;
+        final String worldName = args[0];
+        final StructureWorld structureWorld = plugin.getStructureCache().getWorlds().get(worldName);
+        if (structureWorld == null) {
+            throw new CommandWarn("World not found: " + worldName);
+        }
+        int pinnedRegions = 0;
+        int loadingRegions = 0;
+        final List<StructureRegion> regions = structureWorld.getRegionCache().values();
+        final Set<Integer> pinnedStructures = new HashSet<>();
+        for (StructureRegion region : regions) {
+            if (!region.isLoaded()) loadingRegions += 1;
+            if (region.getReferenceCount() <= 0) continue;
+            pinnedRegions += 1;
+            for (Structure structure : region.getStructures()) {
+                pinnedStructures.add(structure.getId());
+            }
+        }
+        final int cachedStructures = structureWorld.getStructureCache().size();
+        sender.sendMessage(textOfChildren(text("World ", GRAY), text(structureWorld.getWorldName())));
+        sender.sendMessage(textOfChildren(text("  Regions ", GRAY), text(regions.size()),
+                                          text(" pinned ", GRAY), text(pinnedRegions, GREEN),
+                                          text(" evictable ", GRAY), text(regions.size() - pinnedRegions, YELLOW),
+                                          text(" loading ", GRAY), text(loadingRegions, AQUA)));
+        sender.sendMessage(textOfChildren(text("  Structures ", GRAY), text(cachedStructures),
+                                          text(" pinned ", GRAY), text(pinnedStructures.size(), GREEN),
+                                          text(" evictable ", GRAY), text(cachedStructures - pinnedStructures.size(), YELLOW)));
+        sender.sendMessage(textOfChildren(text("  Chunk loads", GRAY),
+                                          text(" hit ", GRAY), text(structureWorld.getChunkRegionHits(), GREEN),
+                                          text(" empty ", GRAY), text(structureWorld.getChunkRegionEmpty(), GREEN),
+                                          text(" pending ", GRAY), text(structureWorld.getChunkRegionPending(), YELLOW),
+                                          text(" miss ", GRAY), text(structureWorld.getChunkRegionMisses(), RED),
+                                          text(" rate ", GRAY), text(String.format("%.1f%%", 100.0 * structureWorld.getChunkRegionHitRate()), AQUA)));
+        sender.sendMessage(textOfChildren(text("  Sync loads ", GRAY), text(structureWorld.getSyncRegionLoads()),
+                                          text(" prefetched ", GRAY), text(structureWorld.getPrefetchedRegions()),
+                                          text(" in flight ", GRAY), text(plugin.getRegionPrefetcher().getInFlight())));
+        final EvictionSettings settings = structureWorld.getEvictionSettings();
+        sender.sendMessage(textOfChildren(text("  Memory ", GRAY), text((structureWorld.getEstimatedSize() / 1024L) + "K"),
+                                          text(" budget ", GRAY), text(settings.maxBytes() > 0L ? (settings.maxBytes() / 1024L) + "K" : "none"),
+                                          text(" regions ", GRAY), text(settings.maxRegions() > 0 ? "" + settings.maxRegions() : "none"),
+                                          text(" pinned ", GRAY), text(settings.pinnedRegions().length)));
+        final List<Component> evictionComponents = new ArrayList<>();
+        evictionComponents.add(text("  Evictions", GRAY));
+        for (EvictionReason reason : EvictionReason.values()) {
+            evictionComponents.add(text(" " + reason.name().toLowerCase(Locale.ROOT) + " ", GRAY));
+            evictionComponents.add(text(structureWorld.getEvictionCount(reason), YELLOW));
+        }
+        sender.sendMessage(textOfChildren(evictionComponents.toArray(new Component[0])));
+        return true;
+    }
+
+    private boolean metrics(CommandSender sender, String[] args) {
+        if (args.length > 1) return false;
+        if (args.length == 1) {
+            if (!args[0].equals("reset")) return false;
+            StructureMetrics.reset();
+            sender.sendMessage(text("Metrics reset", YELLOW));
+            return true;
+        }
+        sender.sendMessage(textOfChildren(text("Metrics mode ", GRAY), text(StructureMetrics.getMode().name().toLowerCase(Locale.ROOT))));
+        final List<Component> counters = new ArrayList<>();
+        for (StructureMetrics.Counter counter : StructureMetrics.Counter.values()) {
+            counters.add(textOfChildren(text(counter.key + " ", GRAY), text(StructureMetrics.getCount(counter))));
+        }
+        sender.sendMessage(join(separator(text(", ", DARK_GRAY)), counters));
+        for (StructureMetrics.Timer timer : StructureMetrics.Timer.values()) {
+            final long calls = StructureMetrics.getCalls(timer);
+            if (calls == 0L) continue;
+            final LatencyHistogram histogram = StructureMetrics.getHistogram(timer);
+            sender.sendMessage(textOfChildren(text(timer.key, YELLOW),
+                                              text(" calls ", GRAY), text(calls),
+                                              text(" timed ", GRAY), text(histogram.getCount()),
+                                              text(" mean ", GRAY), text(String.format("%.1fus", histogram.getMeanNanos() / 1000.0)),
+                                              text(" p50 ", GRAY), text((histogram.getPercentileNanos(0.5) / 1000L) + "us"),
+                                              text(" p99 ", GRAY), text((histogram.getPercentileNanos(0.99) / 1000L) + "us"),
+                                              text(" max ", GRAY), text((histogram.getMaxNanos() / 1000L) + "us")));
+        }
         return true;
     }
 
@@ -259,6 +397,44 @@ public final class StructureCommand extends AbstractCommand<StructurePlugin> {
         return true;
     }
 
+    private List<String> indexedTypes() {
+        final Set<String> result = new HashSet<>();
+        for (StructureWorld structureWorld : plugin.getStructureCache().getWorlds().values()) {
+            result.addAll(structureWorld.getIndex().getTypes());
+        }
+        return List.copyOf(result);
+    }
+
+    private boolean nearest(Player player, String[] args) {
+        if (args.length < 1 || args.length > 2) return false;
+        final NamespacedKey type = NamespacedKey.fromString(args[0]);
+        if (type == null) {
+            throw new CommandWarn("Invalid type: " + args[0]);
+        }
+        final int count = args.length >= 2
+            ? CommandArgCompleter.requireInt(args[1], i -> i > 0)
+            : 5;
+        final Block block = player.getLocation().getBlock();
+        final StructureWorld structureWorld = plugin.getStructureCache().getWorlds().get(player.getWorld().getName());
+        if (structureWorld == null || !structureWorld.getIndex().isReady()) {
+            throw new CommandWarn("Structure index not ready");
+        }
+        final List<StructureCenter> centers = structureWorld.nearest(block.getX(), block.getZ(), count, type, false);
+        player.sendMessage(text("Nearest " + centers.size() + " undiscovered " + type + ":", YELLOW));
+        for (StructureCenter center : centers) {
+            final long distance = Math.round(Math.sqrt(center.distanceSquared(block.getX(), block.getZ())));
+            final String coords = center.x() + " ~ " + center.z();
+            final String command = "/tp " + player.getName() + " " + coords;
+            player.sendMessage(textOfChildren(text("- Structure #" + center.id(), GRAY),
+                                              text(" " + center.x() + "," + center.z(), YELLOW),
+                                              text(" distance:", GRAY), text(distance, AQUA))
+                               .hoverEvent(showText(text(command, GRAY)))
+                               .clickEvent(suggestCommand(command))
+                               .insertion(coords));
+        }
+        return true;
+    }
+
     private void biome(Player player) {
         final Block block = player.getLocation().getBlock();
         player.sendMessage(textOfChildren(text("Biome at ", GRAY),
@@ -268,6 +444,104 @@ public final class StructureCommand extends AbstractCommand<StructurePlugin> {
                                           text(" " + plugin.getStructureCache().biomeAt(block))));
     }
 
+    /**
+     * Compare the per-region latency of loading structures one id at
+     * a time against the single JOIN query used by region loads.
+     * Runs asynchronously.  The JOIN pass is repeated once before the
+     * measurement so both run with a warm page cache.
+     */
+    private boolean benchRegionLoad(CommandSender sender, String[] args) {
+        if (args.length < 1 || args.length > 2) return false;
+        final String worldName = args[0];
+        final int count = args.length >= 2
+            ? CommandArgCompleter.requireInt(args[1], i -> i > 0)
+            : 100;
+        final StructureWorld structureWorld = plugin.getStructureCache().getWorlds().get(worldName);
+        if (structureWorld == null) {
+            throw new CommandWarn("World not found: " + worldName);
+        }
+        final SQLiteDataStore dataStore = structureWorld.getDataStore();
+        if (dataStore == null) {
+            throw new CommandWarn("World does not have an SQLite data store: " + worldName);
+        }
+        sender.sendMessage(text("Benchmarking up to " + count + " region loads in " + worldName + "...", YELLOW));
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                final List<Vec2i> regions = dataStore.getPopulatedRegions(count);
+                for (Vec2i region : regions) {
+                    dataStore.loadRegions(List.of(region), id -> false);
+                }
+                // Before: One query for the refs, then one per id
+                int structures = 0;
+                final long perIdStart = System.nanoTime();
+                for (Vec2i region : regions) {
+                    for (int id : dataStore.getStructureRefs(region.x, region.z)) {
+                        if (dataStore.getStructure(id) != null) structures += 1;
+                    }
+                }
+                final long perIdNanos = System.nanoTime() - perIdStart;
+                // After: One JOIN per region
+                final long joinStart = System.nanoTime();
+                for (Vec2i region : regions) {
+                    dataStore.loadRegions(List.of(region), id -> false);
+                }
+                final long joinNanos = System.nanoTime() - joinStart;
+                // After: Batched JOIN over all regions
+                final long batchStart = System.nanoTime();
+                dataStore.loadRegions(regions, id -> false);
+                final long batchNanos = System.nanoTime() - batchStart;
+                final int regionCount = Math.max(1, regions.size());
+                final int structureCount = structures;
+                Bukkit.getScheduler().runTask(plugin, () -> {
+                        sender.sendMessage(text(regions.size() + " regions, " + structureCount + " structures", YELLOW));
+                        sender.sendMessage(textOfChildren(text("  Per id ", GRAY),
+                                                          text((perIdNanos / 1000L / regionCount) + "µs/region")));
+                        sender.sendMessage(textOfChildren(text("  Join ", GRAY),
+                                                          text((joinNanos / 1000L / regionCount) + "µs/region")));
+                        sender.sendMessage(textOfChildren(text("  Batched join ", GRAY),
+                                                          text((batchNanos / 1000L / regionCount) + "µs/region")));
+                    });
+            });
+        return true;
+    }
+
+    /**
+     * Repeat the structure lookup at the player's location and
+     * report the time and the bytes allocated per call, as counted by
+     * the JVM for the current thread.
+     */
+    private boolean benchLookup(Player player, String[] args) {
+        if (args.length > 1) return false;
+        final int iterations = args.length >= 1
+            ? CommandArgCompleter.requireInt(args[0], i -> i > 0)
+            : 1_000_000;
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threadBean)
+            || !threadBean.isThreadAllocatedMemorySupported()) {
+            throw new CommandWarn("Allocation counting not supported");
+        }
+        final World world = player.getWorld();
+        final Block block = player.getLocation().getBlock();
+        final int x = block.getX();
+        final int y = block.getY();
+        final int z = block.getZ();
+        final StructureCache structureCache = plugin.getStructureCache();
+        int found = 0;
+        // Warm up
+        for (int i = 0; i < 10_000; i += 1) {
+            if (structureCache.at(world, x, y, z) != null) found += 1;
+        }
+        final long bytesBefore = threadBean.getCurrentThreadAllocatedBytes();
+        final long timeBefore = System.nanoTime();
+        for (int i = 0; i < iterations; i += 1) {
+            if (structureCache.at(world, x, y, z) != null) found += 1;
+        }
+        final long nanos = System.nanoTime() - timeBefore;
+        final long bytes = threadBean.getCurrentThreadAllocatedBytes() - bytesBefore;
+        player.sendMessage(text(iterations + " lookups at " + x + " " + y + " " + z + ", found=" + (found > 0), YELLOW));
+        player.sendMessage(textOfChildren(text("  Time ", GRAY), text(String.format("%.1fns/call", (double) nanos / iterations))));
+        player.sendMessage(textOfChildren(text("  Allocated ", GRAY), text(String.format("%.3f bytes/call", (double) bytes / iterations))));
+        return true;
+    }
+
     private boolean sqliteUpdate(CommandSender sender, String[] args) {
         if (args.length < 2) return false;
         final String worldName = args[0];
@@ -2,8 +2,12 @@ package com.cavetale.structure;
 
 import com.cavetale.core.event.block.PlayerBlockAbilityQuery;
 import com.cavetale.core.event.structure.PlayerDiscoverStructureEvent;
+import com.cavetale.structure.cache.RegionPrefetcher;
 import com.cavetale.structure.cache.Structure;
 import com.cavetale.structure.cache.StructureCache;
+import com.cavetale.structure.metrics.StructureMetrics;
+import com.cavetale.structure.metrics.StructureMetricsBean;
+import java.util.Locale;
 import java.util.logging.Logger;
 import lombok.Getter;
 import org.bukkit.Bukkit;
@@ -26,6 +30,8 @@ public final class StructurePlugin extends JavaPlugin implements Listener {
     private final StructureCache structureCache = new StructureCache();
     private final StructureCommand structureCommand = new StructureCommand(this);
     private final CoreStructures coreStructures = new CoreStructures(this);
+    private final RegionPrefetcher regionPrefetcher = new RegionPrefetcher(structureCache);
+    private final StructureMetricsBean metricsBean = new StructureMetricsBean();
 
     @Override
     public void onLoad() {
@@ -35,17 +41,35 @@ public final class StructurePlugin extends JavaPlugin implements Listener {
 
     @Override
     public void onEnable() {
+        saveDefaultConfig();
+        loadMetricsConfig();
+        metricsBean.register();
         structureCommand.enable();
         for (World world : Bukkit.getWorlds()) {
             structureCache.enable(world);
         }
         Bukkit.getPluginManager().registerEvents(this, this);
+        regionPrefetcher.enable(getConfig().getConfigurationSection("prefetch"));
     }
 
     @Override
     public void onDisable() {
+        regionPrefetcher.disable();
         structureCache.disable();
         coreStructures.unregister();
+        metricsBean.unregister();
+    }
+
+    private void loadMetricsConfig() {
+        StructureMetrics.Mode mode;
+        final String modeName = getConfig().getString("metrics.mode", "sampled");
+        try {
+            mode = StructureMetrics.Mode.valueOf(modeName.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException iae) {
+            getLogger().warning("Invalid metrics mode: " + modeName);
+            mode = StructureMetrics.Mode.SAMPLED;
+        }
+        StructureMetrics.configure(mode, getConfig().getInt("metrics.sample-rate", 64));
     }
 
     @EventHandler
@@ -111,15 +135,22 @@ public final class StructurePlugin extends JavaPlugin implements Listener {
         return instance.structureCache;
     }
 
+    /**
+     * Get the plugin logger, or a plain logger if the plugin is not
+     * loaded, which is the case when the cache runs headless, for
+     * example in benchmarks.
+     */
     public static Logger logger() {
-        return instance.getLogger();
+        return instance != null
+            ? instance.getLogger()
+            : Logger.getLogger("Structure");
     }
 
     public static void log(String msg) {
-        instance.getLogger().info(msg);
+        logger().info(msg);
     }
 
     public static void warn(String msg) {
-        instance.getLogger().warning(msg);
+        logger().warning(msg);
     }
 }
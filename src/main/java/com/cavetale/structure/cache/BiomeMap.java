@@ -0,0 +1,105 @@
+package com.cavetale.structure.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.bukkit.block.Biome;
+
+/**
+ * Compact map from chunk coordinates to biomes.  The coordinates are
+ * packed into one long key, and each entry stores only a one byte
+ * index into a palette of the distinct biomes, so a chunk costs about
+ * 18 bytes instead of a boxed map entry.  Collisions are resolved by
+ * linear probing.
+ *
+ * Filled once and then only read.  Not thread safe while filling.
+ */
+public final class BiomeMap {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_PALETTE = 255;
+    private long[] keys = new long[INITIAL_CAPACITY];
+    /** Palette index plus one, or 0 if the slot is empty. */
+    private byte[] values = new byte[INITIAL_CAPACITY];
+    private final List<Biome> palette = new ArrayList<>();
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get the biome of a chunk, or null if it is not stored.
+     */
+    public Biome get(int chunkX, int chunkZ) {
+        final long key = RegionMap.pack(chunkX, chunkZ);
+        final int mask = values.length - 1;
+        for (int i = RegionMap.hash(key) & mask;; i = (i + 1) & mask) {
+            final int value = values[i] & 0xFF;
+            if (value == 0) return null;
+            if (keys[i] == key) return palette.get(value - 1);
+        }
+    }
+
+    /**
+     * Store the biome of a chunk, replacing the previous one.
+     * @throws IllegalStateException if there are more distinct
+     *   biomes than the palette can hold
+     */
+    public void put(int chunkX, int chunkZ, Biome biome) {
+        if (biome == null) throw new IllegalArgumentException("biome cannot be null");
+        int paletteIndex = palette.indexOf(biome);
+        if (paletteIndex < 0) {
+            if (palette.size() == MAX_PALETTE) {
+                throw new IllegalStateException("Too many biomes: " + palette.size());
+            }
+            paletteIndex = palette.size();
+            palette.add(biome);
+        }
+        if ((size + 1) * 4 > values.length * 3) {
+            resize(values.length * 2);
+        }
+        final long key = RegionMap.pack(chunkX, chunkZ);
+        final int mask = values.length - 1;
+        for (int i = RegionMap.hash(key) & mask;; i = (i + 1) & mask) {
+            if (values[i] == 0) {
+                keys[i] = key;
+                values[i] = (byte) (paletteIndex + 1);
+                size += 1;
+                return;
+            }
+            if (keys[i] == key) {
+                values[i] = (byte) (paletteIndex + 1);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Visit all entries in no particular order.
+     */
+    public void forEach(BiomeVisitor visitor) {
+        for (int i = 0; i < values.length; i += 1) {
+            final int value = values[i] & 0xFF;
+            if (value == 0) continue;
+            visitor.visit(RegionMap.unpackX(keys[i]), RegionMap.unpackZ(keys[i]), palette.get(value - 1));
+        }
+    }
+
+    private void resize(int capacity) {
+        final long[] oldKeys = keys;
+        final byte[] oldValues = values;
+        keys = new long[capacity];
+        values = new byte[capacity];
+        final int mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j += 1) {
+            if (oldValues[j] == 0) continue;
+            int i = RegionMap.hash(oldKeys[j]) & mask;
+            while (values[i] != 0) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+}
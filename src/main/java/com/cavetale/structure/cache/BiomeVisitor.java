@@ -0,0 +1,11 @@
+package com.cavetale.structure.cache;
+
+import org.bukkit.block.Biome;
+
+/**
+ * Receives the stored biome of one chunk at a time.
+ */
+@FunctionalInterface
+public interface BiomeVisitor {
+    void visit(int chunkX, int chunkZ, Biome biome);
+}
@@ -0,0 +1,265 @@
+package com.cavetale.structure.cache;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Static 2d tree over the structure centers of one type, stored in
+ * parallel primitive arrays.  The tree is implicit: the median of
+ * each range is the root of that range, split on x at even depths
+ * and on z at odd depths.  Entries left of a root are never greater
+ * on its axis, entries right of it never less.
+ *
+ * Only the discovered flags change after the build.  They are
+ * written by one thread at a time, and readers may see a change a
+ * moment late.
+ */
+final class CenterTree {
+    static final CenterTree EMPTY = new CenterTree("", new int[0], new int[0], new int[0], new boolean[0], 0);
+    final String type;
+    private final int[] ids;
+    private final int[] xs;
+    private final int[] zs;
+    private final boolean[] discovered;
+    private final int size;
+
+    /**
+     * Build a tree.  The arrays are taken over and reordered.
+     */
+    CenterTree(final String type, final int[] ids, final int[] xs, final int[] zs, final boolean[] discovered, final int size) {
+        this.type = type;
+        this.ids = ids;
+        this.xs = xs;
+        this.zs = zs;
+        this.discovered = discovered;
+        this.size = size;
+        build(0, size, true);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Make a new tree with the entries of both trees and the extra
+     * centers.
+     */
+    static CenterTree merge(String type, CenterTree a, CenterTree b, List<StructureCenter> extra) {
+        final int size = a.size + b.size + extra.size();
+        final int[] ids = new int[size];
+        final int[] xs = new int[size];
+        final int[] zs = new int[size];
+        final boolean[] discovered = new boolean[size];
+        int i = 0;
+        for (CenterTree tree : List.of(a, b)) {
+            System.arraycopy(tree.ids, 0, ids, i, tree.size);
+            System.arraycopy(tree.xs, 0, xs, i, tree.size);
+            System.arraycopy(tree.zs, 0, zs, i, tree.size);
+            System.arraycopy(tree.discovered, 0, discovered, i, tree.size);
+            i += tree.size;
+        }
+        for (StructureCenter center : extra) {
+            ids[i] = center.id();
+            xs[i] = center.x();
+            zs[i] = center.z();
+            discovered[i] = center.discovered();
+            i += 1;
+        }
+        return new CenterTree(type, ids, xs, zs, discovered, size);
+    }
+
+    private int key(boolean splitX, int index) {
+        return splitX ? xs[index] : zs[index];
+    }
+
+    private void build(int lo, int hi, boolean splitX) {
+        if (hi - lo <= 1) return;
+        final int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, splitX);
+        build(lo, mid, !splitX);
+        build(mid + 1, hi, !splitX);
+    }
+
+    /**
+     * Partially sort the inclusive range so the entry at index k is
+     * where it would be if the range was sorted on the axis.
+     */
+    private void select(int left, int right, int k, boolean splitX) {
+        while (right > left) {
+            final int pivot = key(splitX, (left + right) >>> 1);
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (key(splitX, i) < pivot) i += 1;
+                while (key(splitX, j) > pivot) j -= 1;
+                if (i <= j) {
+                    swap(i, j);
+                    i += 1;
+                    j -= 1;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        final int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        final int x = xs[i];
+        xs[i] = xs[j];
+        xs[j] = x;
+        final int z = zs[i];
+        zs[i] = zs[j];
+        zs[j] = z;
+        final boolean d = discovered[i];
+        discovered[i] = discovered[j];
+        discovered[j] = d;
+    }
+
+    private StructureCenter centerAt(int index) {
+        return new StructureCenter(ids[index], type, xs[index], zs[index], discovered[index]);
+    }
+
+    /**
+     * Set the discovered flag of the entry with this id and center.
+     * @return true if it was found
+     */
+    boolean setDiscovered(int id, int x, int z, boolean value) {
+        return setDiscovered(0, size, true, id, x, z, value);
+    }
+
+    private boolean setDiscovered(int lo, int hi, boolean splitX, int id, int x, int z, boolean value) {
+        if (lo >= hi) return false;
+        final int mid = (lo + hi) >>> 1;
+        if (ids[mid] == id) {
+            discovered[mid] = value;
+            return true;
+        }
+        final int diff = Integer.compare(splitX ? x : z, key(splitX, mid));
+        return (diff <= 0 && setDiscovered(lo, mid, !splitX, id, x, z, value))
+            || (diff >= 0 && setDiscovered(mid + 1, hi, !splitX, id, x, z, value));
+    }
+
+    /**
+     * Offer the entries matching the filter to the collector,
+     * skipping branches which cannot beat its current worst.
+     * @param filter the discovered flag to match, or null for any
+     */
+    void nearest(int x, int z, Boolean filter, Nearest result) {
+        nearest(0, size, true, x, z, filter, result);
+    }
+
+    private void nearest(int lo, int hi, boolean splitX, int x, int z, Boolean filter, Nearest result) {
+        if (lo >= hi) return;
+        final int mid = (lo + hi) >>> 1;
+        if (filter == null || discovered[mid] == filter.booleanValue()) {
+            final long dx = (long) x - xs[mid];
+            final long dz = (long) z - zs[mid];
+            final long distance = dx * dx + dz * dz;
+            if (distance < result.worst()) result.offer(distance, centerAt(mid));
+        }
+        final long diff = splitX ? (long) x - xs[mid] : (long) z - zs[mid];
+        if (diff < 0) {
+            nearest(lo, mid, !splitX, x, z, filter, result);
+            if (diff * diff < result.worst()) nearest(mid + 1, hi, !splitX, x, z, filter, result);
+        } else {
+            nearest(mid + 1, hi, !splitX, x, z, filter, result);
+            if (diff * diff < result.worst()) nearest(lo, mid, !splitX, x, z, filter, result);
+        }
+    }
+
+    /**
+     * Add the entries matching the filter within the squared radius
+     * to the list.
+     */
+    void withinRadius(int x, int z, long radiusSquared, Boolean filter, List<StructureCenter> result) {
+        withinRadius(0, size, true, x, z, radiusSquared, filter, result);
+    }
+
+    private void withinRadius(int lo, int hi, boolean splitX, int x, int z, long radiusSquared, Boolean filter, List<StructureCenter> result) {
+        if (lo >= hi) return;
+        final int mid = (lo + hi) >>> 1;
+        if (filter == null || discovered[mid] == filter.booleanValue()) {
+            final long dx = (long) x - xs[mid];
+            final long dz = (long) z - zs[mid];
+            if (dx * dx + dz * dz <= radiusSquared) result.add(centerAt(mid));
+        }
+        final long diff = splitX ? (long) x - xs[mid] : (long) z - zs[mid];
+        if (diff <= 0 || diff * diff <= radiusSquared) {
+            withinRadius(lo, mid, !splitX, x, z, radiusSquared, filter, result);
+        }
+        if (diff >= 0 || diff * diff <= radiusSquared) {
+            withinRadius(mid + 1, hi, !splitX, x, z, radiusSquared, filter, result);
+        }
+    }
+
+    /**
+     * Keeps the k nearest centers offered so far in a max heap.
+     */
+    static final class Nearest {
+        private final long[] distances;
+        private final StructureCenter[] centers;
+        private int count;
+
+        Nearest(final int k) {
+            this.distances = new long[k];
+            this.centers = new StructureCenter[k];
+        }
+
+        /**
+         * Get the distance an entry must beat to be added.
+         */
+        long worst() {
+            return count < distances.length ? Long.MAX_VALUE : distances[0];
+        }
+
+        void offer(long distance, StructureCenter center) {
+            int i;
+            if (count < distances.length) {
+                // Sift up from the new leaf
+                i = count;
+                count += 1;
+                while (i > 0) {
+                    final int parent = (i - 1) >>> 1;
+                    if (distances[parent] >= distance) break;
+                    distances[i] = distances[parent];
+                    centers[i] = centers[parent];
+                    i = parent;
+                }
+            } else {
+                // Replace the root and sift down
+                i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= count) break;
+                    if (child + 1 < count && distances[child + 1] > distances[child]) child += 1;
+                    if (distances[child] <= distance) break;
+                    distances[i] = distances[child];
+                    centers[i] = centers[child];
+                    i = child;
+                }
+            }
+            distances[i] = distance;
+            centers[i] = center;
+        }
+
+        /**
+         * Get the result, nearest first.
+         */
+        List<StructureCenter> toList() {
+            final Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i += 1) order[i] = i;
+            Arrays.sort(order, (a, b) -> Long.compare(distances[a], distances[b]));
+            final StructureCenter[] result = new StructureCenter[count];
+            for (int i = 0; i < count; i += 1) result[i] = centers[order[i]];
+            return List.of(result);
+        }
+    }
+}
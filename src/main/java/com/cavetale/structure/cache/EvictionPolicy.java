@@ -0,0 +1,55 @@
+package com.cavetale.structure.cache;
+
+import java.util.Locale;
+
+/**
+ * Decides which idle regions go first when a world's region cache is
+ * over budget.  Regions pinned by loaded chunks or by the config are
+ * never offered for eviction.
+ */
+public interface EvictionPolicy {
+    /**
+     * Rank an evictable region.  Lower scores are evicted first.
+     * @param now the current server tick
+     */
+    long score(StructureRegion region, long now);
+
+    /**
+     * Called for every cached region each time the cache is pruned.
+     */
+    default void onPrune(StructureRegion region) { }
+
+    /**
+     * Least recently used goes first.
+     */
+    EvictionPolicy LRU = (region, now) -> region.lastUse;
+
+    /**
+     * Least frequently used goes first.  Use counts are halved on
+     * every prune so old popularity fades.  Ties go to the least
+     * recently used.
+     */
+    EvictionPolicy LFU = new EvictionPolicy() {
+            @Override
+            public long score(StructureRegion region, long now) {
+                return ((long) region.useCount << 32) | (region.lastUse & 0xFFFFFFFFL);
+            }
+
+            @Override
+            public void onPrune(StructureRegion region) {
+                region.useCount >>= 1;
+            }
+        };
+
+    /**
+     * Get a policy by its config name.
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    static EvictionPolicy of(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+        case "lru": return LRU;
+        case "lfu": return LFU;
+        default: throw new IllegalArgumentException("Unknown eviction policy: " + name);
+        }
+    }
+}
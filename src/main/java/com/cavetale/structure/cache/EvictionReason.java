@@ -0,0 +1,21 @@
+package com.cavetale.structure.cache;
+
+import com.cavetale.structure.metrics.StructureMetrics.Counter;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Why a region was dropped from the cache.
+ */
+@Getter
+@RequiredArgsConstructor
+public enum EvictionReason {
+    /** Not used for longer than the idle time. */
+    IDLE(Counter.EVICTION_IDLE),
+    /** The world had more cached regions than allowed. */
+    MAX_REGIONS(Counter.EVICTION_MAX_REGIONS),
+    /** The estimated memory of the world exceeded its budget. */
+    MAX_MEMORY(Counter.EVICTION_MAX_MEMORY);
+
+    private final Counter counter;
+}
@@ -0,0 +1,63 @@
+package com.cavetale.structure.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.bukkit.configuration.ConfigurationSection;
+import static com.cavetale.structure.StructurePlugin.warn;
+
+/**
+ * The cache settings of one world.  Each world may override the
+ * defaults in the cache section of config.yml under
+ * cache.worlds.[name].
+ *
+ * @param policy decides what to evict when over budget
+ * @param idleTicks regions unused for this long are evicted
+ * @param maxRegions the region budget, or 0 for no limit
+ * @param maxBytes the estimated memory budget, or 0 for no limit
+ * @param pinnedRegions regions which are never evicted, packed via
+ *   RegionMap#pack
+ */
+public record EvictionSettings(EvictionPolicy policy,
+                               long idleTicks,
+                               int maxRegions,
+                               long maxBytes,
+                               long[] pinnedRegions) {
+    public static final EvictionSettings DEFAULT = new EvictionSettings(EvictionPolicy.LRU, 200L, 0, 0L, new long[0]);
+
+    public static EvictionSettings load(ConfigurationSection cacheSection, String worldName) {
+        if (cacheSection == null) return DEFAULT;
+        final ConfigurationSection worldSection = cacheSection.getConfigurationSection("worlds." + worldName);
+        final ConfigurationSection section = worldSection != null ? worldSection : cacheSection;
+        EvictionPolicy policy;
+        final String policyName = section.getString("policy", cacheSection.getString("policy", "lru"));
+        try {
+            policy = EvictionPolicy.of(policyName);
+        } catch (IllegalArgumentException iae) {
+            warn("[" + worldName + "] " + iae.getMessage());
+            policy = EvictionPolicy.LRU;
+        }
+        final long idleTicks = section.getLong("idle-ticks", cacheSection.getLong("idle-ticks", 200L));
+        final int maxRegions = section.getInt("max-regions", cacheSection.getInt("max-regions", 0));
+        final long maxMegabytes = section.getLong("max-memory", cacheSection.getLong("max-memory", 0L));
+        final List<Long> pinned = new ArrayList<>();
+        for (String string : section.getStringList("pinned-regions")) {
+            final String[] toks = string.split(",", 2);
+            try {
+                pinned.add(RegionMap.pack(Integer.parseInt(toks[0].trim()), Integer.parseInt(toks[1].trim())));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                warn("[" + worldName + "] Invalid pinned region: " + string);
+            }
+        }
+        final long[] pinnedRegions = new long[pinned.size()];
+        for (int i = 0; i < pinnedRegions.length; i += 1) pinnedRegions[i] = pinned.get(i);
+        return new EvictionSettings(policy, idleTicks, maxRegions, maxMegabytes * 1024L * 1024L, pinnedRegions);
+    }
+
+    public boolean isPinned(int regionX, int regionZ) {
+        final long key = RegionMap.pack(regionX, regionZ);
+        for (long it : pinnedRegions) {
+            if (it == key) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,205 @@
+package com.cavetale.structure.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
+
+/**
+ * Copy-on-write holder of a world wide index: a large main part
+ * built from the data store, plus a short unsorted list of the
+ * entries added since, which queries scan one by one.  Both are
+ * published together, so queries are safe from any thread.  Changes
+ * must come from one thread at a time.
+ *
+ * Once the list grows past an eighth of the main part, both are
+ * merged into a new main part on the executor which was given to
+ * build, usually the writer thread.  Entries added meanwhile stay in
+ * the list, and updates made meanwhile are replayed on the new main
+ * part when it is published.
+ *
+ * The main part is built on the writer thread when the world is
+ * enabled.  Until it is ready, changes are kept to be replayed on
+ * top of the build.
+ *
+ * @param <M> the main part
+ * @param <E> an entry
+ */
+final class LayeredIndex<M, E> {
+    private static final int MIN_RECENT = 256;
+    private final Layer<M, E> layer;
+    private final M empty;
+    private volatile Parts<M, E> parts;
+    private volatile boolean ready;
+    /** The state below is guarded by this. */
+    private Executor executor;
+    private final List<Change<E>> replay = new ArrayList<>();
+    private boolean merging;
+    /** Counts builds and clears, so a late merge can tell it is stale. */
+    private int generation;
+
+    /**
+     * What the index does with its main part.
+     */
+    interface Layer<M, E> {
+        int size(M main);
+
+        /**
+         * Make a new main part from the old one plus the entries.
+         * This runs on the executor while the old part is in use.
+         */
+        M merge(M main, List<E> entries);
+
+        /**
+         * Write the mutable fields of the entry to the matching
+         * entry of the main part.
+         * @return true if it was found
+         */
+        boolean update(M main, E entry);
+
+        /**
+         * Check if two entries stand for the same thing.
+         */
+        boolean matches(E a, E b);
+    }
+
+    /**
+     * The main part and the recent entries, which are never modified
+     * once published.
+     */
+    record Parts<M, E>(M main, List<E> recent) { }
+
+    private record Change<E>(E entry, boolean add) { }
+
+    LayeredIndex(final Layer<M, E> layer, final M empty) {
+        this.layer = layer;
+        this.empty = empty;
+        this.parts = new Parts<>(empty, List.of());
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    Parts<M, E> parts() {
+        return parts;
+    }
+
+    int size() {
+        final Parts<M, E> current = parts;
+        return layer.size(current.main()) + current.recent().size();
+    }
+
+    /**
+     * Publish the main part which was just built, and replay the
+     * changes which arrived meanwhile.
+     * @param seen checks if the build saw an added entry already
+     * @param mergeExecutor runs the merges, or null to merge on the
+     *   calling thread
+     */
+    synchronized void build(M main, Predicate<E> seen, Executor mergeExecutor) {
+        generation += 1;
+        executor = mergeExecutor;
+        merging = false;
+        parts = new Parts<>(main, List.of());
+        for (Change<E> change : replay) {
+            if (!change.add()) {
+                update0(change.entry());
+            } else if (!seen.test(change.entry())) {
+                add0(change.entry());
+            }
+        }
+        replay.clear();
+        ready = true;
+    }
+
+    synchronized void clear() {
+        generation += 1;
+        executor = null;
+        merging = false;
+        parts = new Parts<>(empty, List.of());
+        replay.clear();
+        ready = false;
+    }
+
+    /**
+     * Add an entry which was just inserted into the data store.
+     */
+    synchronized void add(E entry) {
+        if (!ready) {
+            replay.add(new Change<>(entry, true));
+        } else {
+            add0(entry);
+        }
+    }
+
+    private void add0(E entry) {
+        final Parts<M, E> old = parts;
+        final List<E> recent = new ArrayList<>(old.recent().size() + 1);
+        recent.addAll(old.recent());
+        recent.add(entry);
+        parts = new Parts<>(old.main(), List.copyOf(recent));
+        if (!merging && recent.size() > Math.max(MIN_RECENT, layer.size(old.main()) / 8)) {
+            startMerge();
+        }
+    }
+
+    /**
+     * Update the mutable fields of an entry.
+     */
+    synchronized void update(E entry) {
+        if (!ready || merging) replay.add(new Change<>(entry, false));
+        if (ready) update0(entry);
+    }
+
+    private void update0(E entry) {
+        final Parts<M, E> current = parts;
+        if (layer.update(current.main(), entry)) return;
+        final List<E> recent = current.recent();
+        for (int i = 0; i < recent.size(); i += 1) {
+            if (!layer.matches(recent.get(i), entry)) continue;
+            final List<E> copy = new ArrayList<>(recent);
+            copy.set(i, entry);
+            parts = new Parts<>(current.main(), List.copyOf(copy));
+            return;
+        }
+    }
+
+    private void startMerge() {
+        final Parts<M, E> base = parts;
+        final int current = generation;
+        merging = true;
+        if (executor == null) {
+            finishMerge(base, current, layer.merge(base.main(), base.recent()));
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                    final M main = layer.merge(base.main(), base.recent());
+                    synchronized (this) {
+                        finishMerge(base, current, main);
+                    }
+                });
+        } catch (RejectedExecutionException ree) {
+            // Shutting down.  Keep the list as it is.
+            merging = false;
+            replay.clear();
+        }
+    }
+
+    /**
+     * Publish a merged main part.  The entries which were added since
+     * the merge started stay recent, and updates made meanwhile are
+     * replayed, because the merge may have copied the old values.
+     */
+    private void finishMerge(Parts<M, E> base, int mergeGeneration, M main) {
+        if (mergeGeneration != generation) return;
+        merging = false;
+        final List<E> recent = parts.recent();
+        parts = new Parts<>(main, List.copyOf(recent.subList(base.recent().size(), recent.size())));
+        for (Change<E> change : replay) update0(change.entry());
+        replay.clear();
+        if (parts.recent().size() > Math.max(MIN_RECENT, layer.size(main) / 8)) startMerge();
+    }
+}
@@ -0,0 +1,122 @@
+package com.cavetale.structure.cache;
+
+import com.cavetale.core.struct.Vec2i;
+import com.cavetale.structure.sqlite.SQLiteDataStore;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * World wide set of the regions which contain at least one
+ * structure.  Most regions contain none, and with this set they can
+ * be answered without asking the data store or caching them.
+ *
+ * The regions are kept as a sorted array of packed keys (see
+ * RegionMap.pack) built from the data store, plus a short list of
+ * the regions added since, until it is merged into the array on the
+ * writer thread.  See LayeredIndex.  Queries are safe from any
+ * thread.  Changes must come from one thread at a time.
+ *
+ * The set is built on the writer thread when the world is enabled.
+ * Until it is ready, every region may be populated, and changes are
+ * kept to be applied on top of the build.
+ */
+public final class PopulatedRegions {
+    private static final long[] NONE = new long[0];
+    private final LayeredIndex<long[], Long> layers = new LayeredIndex<>(new KeysLayer(), NONE);
+
+    /**
+     * Merges the recent keys into a new sorted array.
+     */
+    private static final class KeysLayer implements LayeredIndex.Layer<long[], Long> {
+        @Override
+        public int size(long[] main) {
+            return main.length;
+        }
+
+        @Override
+        public long[] merge(long[] main, List<Long> entries) {
+            final long[] keys = Arrays.copyOf(main, main.length + entries.size());
+            int size = main.length;
+            for (long key : entries) keys[size++] = key;
+            Arrays.sort(keys);
+            int count = 0;
+            for (int i = 0; i < size; i += 1) {
+                if (i == 0 || keys[i] != keys[i - 1]) keys[count++] = keys[i];
+            }
+            return Arrays.copyOf(keys, count);
+        }
+
+        @Override
+        public boolean update(long[] main, Long key) {
+            return false;
+        }
+
+        @Override
+        public boolean matches(Long a, Long b) {
+            return a.longValue() == b.longValue();
+        }
+    }
+
+    public boolean isReady() {
+        return layers.isReady();
+    }
+
+    /**
+     * Get the number of populated regions.
+     */
+    public int size() {
+        return layers.size();
+    }
+
+    /**
+     * Read all populated regions from the data store and publish the
+     * set.  Blocks while reading.
+     * @param executor runs the merges, or null to merge on the
+     *   calling thread
+     */
+    protected void build(SQLiteDataStore dataStore, Executor executor) {
+        final long[][] keys = {new long[1024]};
+        final int[] size = new int[1];
+        dataStore.forEachPopulatedRegion((regionX, regionZ) -> {
+                if (size[0] == keys[0].length) keys[0] = Arrays.copyOf(keys[0], size[0] * 2);
+                keys[0][size[0]++] = RegionMap.pack(regionX, regionZ);
+            });
+        final long[] main = Arrays.copyOf(keys[0], size[0]);
+        Arrays.sort(main);
+        layers.build(main, key -> Arrays.binarySearch(main, key) >= 0, executor);
+    }
+
+    public void clear() {
+        layers.clear();
+    }
+
+    /**
+     * Check if a region is known to contain no structures.  Before
+     * the set is ready, no region is.
+     */
+    public boolean isEmpty(int regionX, int regionZ) {
+        if (!layers.isReady()) return false;
+        return !contains(layers.parts(), RegionMap.pack(regionX, regionZ));
+    }
+
+    private static boolean contains(LayeredIndex.Parts<long[], Long> parts, long key) {
+        if (Arrays.binarySearch(parts.main(), key) >= 0) return true;
+        for (Long recent : parts.recent()) {
+            if (recent.longValue() == key) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Add the regions of a structure which was just inserted into the
+     * data store.
+     */
+    protected void add(Structure structure) {
+        for (Vec2i region : SQLiteDataStore.getRegions(structure.getBoundingBox())) {
+            final long key = RegionMap.pack(region.x, region.z);
+            if (layers.isReady() && contains(layers.parts(), key)) continue;
+            layers.add(key);
+        }
+    }
+}
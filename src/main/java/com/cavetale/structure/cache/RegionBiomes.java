@@ -0,0 +1,61 @@
+package com.cavetale.structure.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.bukkit.block.Biome;
+
+/**
+ * The biomes of the chunks of one region: a palette of the distinct
+ * biomes plus one byte per chunk, which is the palette index plus
+ * one, or 0 where unknown.  Never modified once built, so lookups
+ * are safe from any thread.
+ */
+final class RegionBiomes {
+    private final Biome[] palette;
+    private final byte[] index;
+    /**
+     * The server tick of the last lookup, for regions without
+     * structures, which are cached by their biomes alone.  Main
+     * thread only.
+     */
+    long lastUse;
+
+    private RegionBiomes(final Biome[] palette, final byte[] index) {
+        this.palette = palette;
+        this.index = index;
+    }
+
+    /**
+     * Build the palette.  Biomes beyond the 255th distinct one are
+     * treated as unknown.
+     * @param biomes the biome of each chunk, by chunk index
+     */
+    static RegionBiomes of(Biome[] biomes) {
+        final List<Biome> palette = new ArrayList<>();
+        final byte[] index = new byte[32 * 32];
+        for (int i = 0; i < index.length; i += 1) {
+            final Biome biome = biomes[i];
+            if (biome == null) continue;
+            int paletteIndex = palette.indexOf(biome);
+            if (paletteIndex < 0) {
+                if (palette.size() == 255) continue;
+                paletteIndex = palette.size();
+                palette.add(biome);
+            }
+            index[i] = (byte) (paletteIndex + 1);
+        }
+        return palette.isEmpty()
+            ? new RegionBiomes(null, null)
+            : new RegionBiomes(palette.toArray(new Biome[0]), index);
+    }
+
+    /**
+     * Get the biome of the chunk containing the given block, or null
+     * if it is unknown.  The block must be within this region.
+     */
+    Biome getBiomeAt(int blockX, int blockZ) {
+        if (index == null) return null;
+        final int paletteIndex = index[(((blockZ >> 4) & 31) << 5) | ((blockX >> 4) & 31)] & 0xFF;
+        return paletteIndex != 0 ? palette[paletteIndex - 1] : null;
+    }
+}
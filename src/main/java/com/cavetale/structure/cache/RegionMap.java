@@ -0,0 +1,231 @@
+package com.cavetale.structure.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Open addressing hash map from region coordinates to values.  Both
+ * coordinates are packed into one long key, so lookups do not
+ * allocate.  Collisions are resolved by linear probing, and removal
+ * shifts the following entries back so no tombstones are needed.
+ *
+ * Reads are lock free and safe from any thread.  Writes must not run
+ * concurrently, which is up to the caller.  Each write copies the
+ * table and publishes the copy, so readers always probe a complete
+ * table which never changes.  This is cheap because the map holds
+ * at most a few thousand regions, and regions are added or removed
+ * far less often than they are looked up.
+ *
+ * Null values are not permitted because they mark empty slots.
+ */
+public final class RegionMap<V> {
+    private static final int INITIAL_CAPACITY = 64;
+    private volatile Table table = new Table(new long[INITIAL_CAPACITY], new Object[INITIAL_CAPACITY], 0);
+
+    /**
+     * The arrays are never modified once the table is published.
+     */
+    private record Table(long[] keys, Object[] values, int size) { }
+
+    public static long pack(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    public static int unpackX(long key) {
+        return (int) (key >> 32);
+    }
+
+    public static int unpackZ(long key) {
+        return (int) key;
+    }
+
+    static int hash(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public int size() {
+        return table.size;
+    }
+
+    public boolean isEmpty() {
+        return table.size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int x, int z) {
+        final Table t = table;
+        final long[] keys = t.keys;
+        final Object[] values = t.values;
+        final long key = pack(x, z);
+        final int mask = values.length - 1;
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            final Object value = values[i];
+            if (value == null) return null;
+            if (keys[i] == key) return (V) value;
+        }
+    }
+
+    public boolean containsKey(int x, int z) {
+        return get(x, z) != null;
+    }
+
+    /**
+     * Put a value.
+     * @return the previous value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int x, int z, V value) {
+        if (value == null) throw new IllegalArgumentException("value cannot be null");
+        final Table t = table;
+        final long key = pack(x, z);
+        int mask = t.values.length - 1;
+        for (int i = hash(key) & mask; t.values[i] != null; i = (i + 1) & mask) {
+            if (t.keys[i] != key) continue;
+            final Object old = t.values[i];
+            if (old == value) return (V) old;
+            // The keys stay the same
+            final Object[] values = t.values.clone();
+            values[i] = value;
+            table = new Table(t.keys, values, t.size);
+            return (V) old;
+        }
+        final int capacity = (t.size + 1) * 2 > t.values.length
+            ? t.values.length * 2
+            : t.values.length;
+        final long[] keys = new long[capacity];
+        final Object[] values = new Object[capacity];
+        copyInto(t, keys, values);
+        mask = capacity - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null) i = (i + 1) & mask;
+        keys[i] = key;
+        values[i] = value;
+        table = new Table(keys, values, t.size + 1);
+        return null;
+    }
+
+    /**
+     * Put several values, copying the table only once.  Existing
+     * values with the same keys are replaced.
+     * @param keys the packed keys, see pack
+     * @param values the values, in the same order as the keys
+     */
+    public void putAll(long[] keys, List<? extends V> values) {
+        if (keys.length != values.size()) throw new IllegalArgumentException("keys and values differ in length");
+        final Table t = table;
+        int capacity = t.values.length;
+        while ((t.size + keys.length) * 2 > capacity) capacity *= 2;
+        final long[] newKeys = new long[capacity];
+        final Object[] newValues = new Object[capacity];
+        copyInto(t, newKeys, newValues);
+        final int mask = capacity - 1;
+        int size = t.size;
+        for (int j = 0; j < keys.length; j += 1) {
+            final V value = values.get(j);
+            if (value == null) throw new IllegalArgumentException("value cannot be null");
+            int i = hash(keys[j]) & mask;
+            while (newValues[i] != null && newKeys[i] != keys[j]) i = (i + 1) & mask;
+            if (newValues[i] == null) size += 1;
+            newKeys[i] = keys[j];
+            newValues[i] = value;
+        }
+        table = new Table(newKeys, newValues, size);
+    }
+
+    /**
+     * Remove a value.
+     * @return the removed value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int x, int z) {
+        final Table t = table;
+        final long key = pack(x, z);
+        final int mask = t.values.length - 1;
+        int i = hash(key) & mask;
+        while (true) {
+            if (t.values[i] == null) return null;
+            if (t.keys[i] == key) break;
+            i = (i + 1) & mask;
+        }
+        final long[] keys = t.keys.clone();
+        final Object[] values = t.values.clone();
+        final V result = (V) values[i];
+        // Shift back following entries which probed past this slot
+        int gap = i;
+        for (int j = (gap + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            final int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        values[gap] = null;
+        table = new Table(keys, values, t.size - 1);
+        return result;
+    }
+
+    /**
+     * Remove all values which match the filter, copying the table
+     * only once.
+     * @return the number of removed values
+     */
+    @SuppressWarnings("unchecked")
+    public int removeIf(Predicate<? super V> filter) {
+        final Table t = table;
+        final long[] keys = new long[t.values.length];
+        final Object[] values = new Object[t.values.length];
+        final int mask = values.length - 1;
+        int size = 0;
+        for (int j = 0; j < t.values.length; j += 1) {
+            if (t.values[j] == null || filter.test((V) t.values[j])) continue;
+            int i = hash(t.keys[j]) & mask;
+            while (values[i] != null) i = (i + 1) & mask;
+            keys[i] = t.keys[j];
+            values[i] = t.values[j];
+            size += 1;
+        }
+        if (size == t.size) return 0;
+        table = new Table(keys, values, size);
+        return t.size - size;
+    }
+
+    public void clear() {
+        table = new Table(new long[INITIAL_CAPACITY], new Object[INITIAL_CAPACITY], 0);
+    }
+
+    /**
+     * Get a copy of all values.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        final Table t = table;
+        final List<V> result = new ArrayList<>(t.size);
+        for (Object value : t.values) {
+            if (value != null) result.add((V) value);
+        }
+        return result;
+    }
+
+    /**
+     * Insert all entries of a table into empty arrays, which may be
+     * larger.
+     */
+    private static void copyInto(Table t, long[] keys, Object[] values) {
+        if (values.length == t.values.length) {
+            System.arraycopy(t.keys, 0, keys, 0, keys.length);
+            System.arraycopy(t.values, 0, values, 0, values.length);
+            return;
+        }
+        final int mask = values.length - 1;
+        for (int j = 0; j < t.values.length; j += 1) {
+            if (t.values[j] == null) continue;
+            int i = hash(t.keys[j]) & mask;
+            while (values[i] != null) i = (i + 1) & mask;
+            keys[i] = t.keys[j];
+            values[i] = t.values[j];
+        }
+    }
+}
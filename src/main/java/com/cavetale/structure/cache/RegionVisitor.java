@@ -0,0 +1,9 @@
+package com.cavetale.structure.cache;
+
+/**
+ * Receives the coordinates of one region at a time.
+ */
+@FunctionalInterface
+public interface RegionVisitor {
+    void visit(int regionX, int regionZ);
+}
@@ -6,7 +6,6 @@ import com.cavetale.core.struct.Vec3i;
 import com.cavetale.core.util.Json;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import lombok.Data;
@@ -22,10 +21,17 @@ public final class Structure implements Keyed, com.cavetale.core.structure.Struc
     protected int id;
     protected final String worldName;
     protected final NamespacedKey key;
+    /** See StructureTypes. */
+    protected final transient int typeOrdinal;
     protected final Vec2i chunk;
     protected final Cuboid boundingBox;
-    protected String json;
-    protected boolean discovered;
+    /**
+     * The json and discovered fields are volatile because queries
+     * may read a cached structure off the main thread while the main
+     * thread changes it.
+     */
+    protected volatile String json;
+    protected volatile boolean discovered;
     /**
      * The children are populated while parsing the JSON data.
      * Vanilla structures use it.  Beyond that it is optional and at
@@ -38,6 +44,7 @@ public final class Structure implements Keyed, com.cavetale.core.structure.Struc
     public Structure(final String worldName, final NamespacedKey key, final Vec2i chunk, final Cuboid boundingBox, final String json, final boolean discovered) {
         this.worldName = worldName;
         this.key = key;
+        this.typeOrdinal = StructureTypes.ordinal(key);
         this.chunk = chunk;
         this.boundingBox = boundingBox;
         this.json = json;
@@ -55,24 +62,29 @@ public final class Structure implements Keyed, com.cavetale.core.structure.Struc
         this(worldName, key, chunk, boundingBox, json, false);
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Constructor with children which were already decoded, so the
+     * JSON data is not parsed.
+     */
+    public Structure(final String worldName, final NamespacedKey key, final Vec2i chunk, final Cuboid boundingBox, final String json, final boolean discovered,
+                     final List<StructurePart> children) {
+        this.worldName = worldName;
+        this.key = key;
+        this.typeOrdinal = StructureTypes.ordinal(key);
+        this.chunk = chunk;
+        this.boundingBox = boundingBox;
+        this.json = json;
+        this.discovered = discovered;
+        this.children.addAll(children);
+    }
+
     private void parseVanillaChildren() {
-        Map<String, Object> structureMap = (Map<String, Object>) Json.deserialize(json, Map.class);
-        if (structureMap == null) {
-            throw new IllegalArgumentException("Not a map: " + json);
-        }
-        List<Map<String, Object>> childMaps = (List<Map<String, Object>>) structureMap.get("Children");
-        if (childMaps == null) {
-            throw new IllegalArgumentException("Missing children: " + structureMap);
-        }
-        for (Map<String, Object> childMap : childMaps) {
-            StructurePart part = new StructurePart(childMap);
-            children.add(part);
-        }
+        children.addAll(StructureChildren.parseJson(json));
     }
 
     public StructurePart getChildAt(int x, int y, int z) {
-        for (StructurePart child : children) {
+        for (int i = 0; i < children.size(); i += 1) {
+            final StructurePart child = children.get(i);
             if (child.boundingBox.contains(x, y, z)) return child;
         }
         return null;
@@ -135,6 +147,16 @@ public final class Structure implements Keyed, com.cavetale.core.structure.Struc
         return referenceCount > 0;
     }
 
+    /**
+     * Roughly estimate the heap used by this structure, in bytes, for
+     * the cache budget.  Dominated by the JSON and the children.
+     */
+    public long estimateSize() {
+        return 256L
+            + 2L * (json != null ? json.length() : 0)
+            + 64L * children.size();
+    }
+
     @Override
     public int getInternalId() {
         return id;
@@ -0,0 +1,10 @@
+package com.cavetale.structure.cache;
+
+import com.cavetale.core.struct.Cuboid;
+import org.bukkit.NamespacedKey;
+
+/**
+ * The bounding box of a structure in the StructureColumns.  Use
+ * StructureWorld#getOrLoadStructure to get the structure itself.
+ */
+public record StructureBox(int id, NamespacedKey type, Cuboid boundingBox, boolean discovered) { }
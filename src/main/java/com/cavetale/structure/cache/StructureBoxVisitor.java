@@ -0,0 +1,9 @@
+package com.cavetale.structure.cache;
+
+/**
+ * Receives the bounding box of one stored structure at a time.
+ */
+@FunctionalInterface
+public interface StructureBoxVisitor {
+    void visit(int id, String type, int ax, int ay, int az, int bx, int by, int bz, boolean discovered);
+}
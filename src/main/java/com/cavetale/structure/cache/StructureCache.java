@@ -3,10 +3,15 @@ package com.cavetale.structure.cache;
 import com.cavetale.core.struct.Cuboid;
 import com.cavetale.core.struct.Vec2i;
 import com.cavetale.core.struct.Vec3i;
+import com.cavetale.structure.sqlite.StructureStats;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import lombok.Getter;
 import org.bukkit.NamespacedKey;
 import org.bukkit.World;
@@ -15,10 +20,16 @@ import org.bukkit.block.Block;
 
 /**
  * World container.
+ *
+ * Queries (at, allAt, within, forEachWithin, nearest, withinRadius,
+ * biomeAt) may be called from any thread.  They never block on the
+ * main thread, and see the cache as of the latest change.
+ * Everything else, including enabling worlds and adding structures,
+ * must happen on the main thread.
  */
 @Getter
 public final class StructureCache {
-    private final Map<String, StructureWorld> worlds = new HashMap<>();
+    private final Map<String, StructureWorld> worlds = new ConcurrentHashMap<>();
 
     public StructureWorld enable(World world) {
         final StructureWorld old = worlds.get(world.getName());
@@ -49,11 +60,29 @@ public final class StructureCache {
     }
 
     public Structure at(Block block) {
-        return at(block.getWorld().getName(), Vec3i.of(block));
+        return at(block.getWorld(), block.getX(), block.getY(), block.getZ());
     }
 
     public List<Structure> allAt(Block block) {
-        return allAt(block.getWorld().getName(), Vec3i.of(block));
+        return allAt(block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+
+    /**
+     * Find the structure at the given block coordinates.  This does
+     * not allocate once the region is cached.
+     */
+    public Structure at(World world, int x, int y, int z) {
+        StructureWorld sworld = worlds.get(world.getName());
+        return sworld != null
+            ? sworld.at(x, y, z)
+            : null;
+    }
+
+    public List<Structure> allAt(World world, int x, int y, int z) {
+        StructureWorld sworld = worlds.get(world.getName());
+        return sworld != null
+            ? sworld.allAt(x, y, z)
+            : List.of();
     }
 
     public Structure at(String worldName, Vec3i vector) {
@@ -78,15 +107,106 @@ public final class StructureCache {
     }
 
     public List<Structure> within(String worldName, Cuboid cuboid, NamespacedKey key) {
+        return within(worldName, cuboid, StructureTypeSet.of(key));
+    }
+
+    /**
+     * Find the structures of the given types overlapping the cuboid.
+     * Only the structures of those types are searched.
+     */
+    public List<Structure> within(String worldName, Cuboid cuboid, StructureTypeSet types) {
         StructureWorld sworld = worlds.get(worldName);
-        if (sworld == null) return List.of();
-        List<Structure> result = new ArrayList<>();
-        for (Structure structure : sworld.within(cuboid)) {
-            if (key.equals(structure.getKey())) {
-                result.add(structure);
-            }
-        }
-        return result;
+        return sworld != null
+            ? sworld.within(cuboid, types)
+            : List.of();
+    }
+
+    /**
+     * Find the structure of one of the given types at the block
+     * coordinates.
+     */
+    public Structure at(World world, int x, int y, int z, StructureTypeSet types) {
+        StructureWorld sworld = worlds.get(world.getName());
+        return sworld != null
+            ? sworld.at(x, y, z, types)
+            : null;
+    }
+
+    public List<Structure> allAt(World world, int x, int y, int z, StructureTypeSet types) {
+        StructureWorld sworld = worlds.get(world.getName());
+        return sworld != null
+            ? sworld.allAt(x, y, z, types)
+            : List.of();
+    }
+
+    /**
+     * Visit each structure overlapping the cuboid exactly once,
+     * without building a list.
+     */
+    public void forEachWithin(String worldName, Cuboid cuboid, Consumer<? super Structure> consumer) {
+        StructureWorld sworld = worlds.get(worldName);
+        if (sworld != null) sworld.forEachWithin(cuboid, consumer);
+    }
+
+    /**
+     * Find the structures nearest to a point in the whole world,
+     * without loading regions.  See StructureWorld#nearest.
+     * @param type the structure type, or null for all types
+     * @param discovered the discovered state to match, or null for
+     *   any
+     */
+    public List<StructureCenter> nearest(String worldName, int x, int z, int count, NamespacedKey type, Boolean discovered) {
+        StructureWorld sworld = worlds.get(worldName);
+        return sworld != null
+            ? sworld.nearest(x, z, count, type, discovered)
+            : List.of();
+    }
+
+    /**
+     * Find the structures within a radius of a point, nearest first,
+     * without loading regions.  See StructureWorld#withinRadius.
+     */
+    public List<StructureCenter> withinRadius(String worldName, int x, int z, int radius, NamespacedKey type, Boolean discovered) {
+        StructureWorld sworld = worlds.get(worldName);
+        return sworld != null
+            ? sworld.withinRadius(x, z, radius, type, discovered)
+            : List.of();
+    }
+
+    /**
+     * Get the structure nearest to a point, loading only that
+     * structure, or null if there is none.
+     */
+    public Structure nearestStructure(String worldName, int x, int z, NamespacedKey type, Boolean discovered) {
+        StructureWorld sworld = worlds.get(worldName);
+        if (sworld == null) return null;
+        final List<StructureCenter> centers = sworld.nearest(x, z, 1, type, discovered);
+        return !centers.isEmpty()
+            ? sworld.getOrLoadStructure(centers.get(0).id())
+            : null;
+    }
+
+    /**
+     * Check if any structure overlaps the cuboid without loading any
+     * regions.  See StructureWorld#anyWithin.
+     */
+    public boolean anyWithin(String worldName, Cuboid cuboid, StructureTypeSet types, Boolean discovered) {
+        StructureWorld sworld = worlds.get(worldName);
+        return sworld != null && sworld.anyWithin(cuboid, types, discovered);
+    }
+
+    public int countWithin(String worldName, Cuboid cuboid, StructureTypeSet types, Boolean discovered) {
+        StructureWorld sworld = worlds.get(worldName);
+        return sworld != null
+            ? sworld.countWithin(cuboid, types, discovered)
+            : 0;
+    }
+
+    public List<StructureBox> boxesWithin(String worldName, Cuboid cuboid, StructureTypeSet types, Boolean discovered) {
+        StructureWorld sworld = worlds.get(worldName);
+        return sworld != null
+            ? sworld.boxesWithin(cuboid, types, discovered)
+            : List.of();
     }
 
     public List<Structure> allLoaded(String worldName) {
@@ -112,6 +232,42 @@ public final class StructureCache {
         structureWorld.addStructure(structure);
     }
 
+    /**
+     * Add many structures, possibly in several worlds, with one
+     * transaction per world.
+     */
+    public void addStructures(Collection<Structure> structures) {
+        for (Map.Entry<StructureWorld, List<Structure>> entry : groupByWorld(structures).entrySet()) {
+            entry.getKey().addStructures(entry.getValue());
+        }
+    }
+
+    /**
+     * Add many structures without blocking the main thread.  The
+     * database work happens on each world's writer thread, in order
+     * with the other writes and the write-behind flushes of that
+     * world.  The future completes on the main thread once all caches
+     * are updated.  Worlds which are disabled meanwhile still insert
+     * their structures before they close.
+     */
+    public CompletableFuture<Void> addStructuresAsync(Collection<Structure> structures) {
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (Map.Entry<StructureWorld, List<Structure>> entry : groupByWorld(structures).entrySet()) {
+            futures.add(entry.getKey().addStructuresAsync(entry.getValue()));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private Map<StructureWorld, List<Structure>> groupByWorld(Collection<Structure> structures) {
+        final Map<StructureWorld, List<Structure>> result = new IdentityHashMap<>();
+        for (Structure structure : structures) {
+            StructureWorld structureWorld = worlds.get(structure.getWorldName());
+            if (structureWorld == null) throw new IllegalStateException("World not found: " + structure);
+            result.computeIfAbsent(structureWorld, w -> new ArrayList<>()).add(structure);
+        }
+        return result;
+    }
+
     /**
      * Save the new JSON data to database.
      * Usually called by Structure#saveJsonData().
@@ -136,17 +292,63 @@ public final class StructureCache {
         structureWorld.updateDiscovered(structure);
     }
 
+    /**
+     * Get the biome stored for the chunk containing the given block
+     * coordinates.  Served from the region cache.
+     */
+    public Biome biomeAt(World world, int x, int z) {
+        StructureWorld structureWorld = worlds.get(world.getName());
+        return structureWorld != null
+            ? structureWorld.biomeAt(x, z)
+            : null;
+    }
+
     public Biome biomeAt(Block block) {
-        StructureWorld structureWorld = worlds.get(block.getWorld().getName());
+        return biomeAt(block.getWorld(), block.getX(), block.getZ());
+    }
+
+    /**
+     * Get the structure counts per type of a world, or null if the
+     * world has no data store.  Check StructureStats#isReady before
+     * relying on the numbers.  May be called from any thread.
+     */
+    public StructureStats getStats(String worldName) {
+        StructureWorld structureWorld = worlds.get(worldName);
         return structureWorld != null
-            ? structureWorld.biomeAt(Vec3i.of(block))
+            ? structureWorld.getStats()
             : null;
     }
 
+    /**
+     * Stream every stored chunk biome of a world to the visitor
+     * without loading them all into memory.  Blocks while reading the
+     * database, so it is best called from an async thread.
+     */
+    public void forEachBiome(String worldName, BiomeVisitor visitor) {
+        StructureWorld structureWorld = worlds.get(worldName);
+        if (structureWorld != null) structureWorld.forEachBiome(visitor);
+    }
+
+    /**
+     * Load every stored chunk biome of a world into a compact map.
+     * Blocks while reading the database, so it is best called from
+     * an async thread.
+     */
+    public BiomeMap biomeMap(String worldName) {
+        StructureWorld structureWorld = worlds.get(worldName);
+        return structureWorld != null
+            ? structureWorld.biomeMap()
+            : new BiomeMap();
+    }
+
     public Map<Vec2i, Biome> allBiomes(World world) {
         return allBiomes(world.getName());
     }
 
+    /**
+     * Load every stored chunk biome of a world into a map.  Prefer
+     * forEachBiome or biomeMap on large worlds.
+     */
     public Map<Vec2i, Biome> allBiomes(String worldName) {
         StructureWorld structureWorld = worlds.get(worldName);
         return structureWorld != null
@@ -0,0 +1,13 @@
+package com.cavetale.structure.cache;
+
+/**
+ * The center of a structure's bounding box in the StructureIndex.
+ * Use StructureWorld#getOrLoadStructure to get the structure itself.
+ */
+public record StructureCenter(int id, String type, int x, int z, boolean discovered) {
+    public long distanceSquared(int otherX, int otherZ) {
+        final long dx = (long) x - otherX;
+        final long dz = (long) z - otherZ;
+        return dx * dx + dz * dz;
+    }
+}
@@ -0,0 +1,9 @@
+package com.cavetale.structure.cache;
+
+/**
+ * Receives the center of one stored structure at a time.
+ */
+@FunctionalInterface
+public interface StructureCenterVisitor {
+    void visit(int id, String type, int x, int z, boolean discovered);
+}
@@ -0,0 +1,110 @@
+package com.cavetale.structure.cache;
+
+import com.cavetale.core.struct.Cuboid;
+import com.cavetale.core.util.Json;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Utility to read and write the children of vanilla structures.
+ *
+ * The binary format stored in the children column is:
+ * - version byte
+ * - dictionary size, followed by each distinct piece id
+ * - child count, followed by each child's dictionary index and
+ *   bounding box as 6 ints: ax, ay, az, bx, by, bz
+ */
+public final class StructureChildren {
+    private static final int VERSION = 1;
+
+    private StructureChildren() { }
+
+    /**
+     * Pull the children out of the vanilla structure JSON.
+     * @throws IllegalArgumentException if the JSON is malformed
+     */
+    @SuppressWarnings("unchecked")
+    public static List<StructurePart> parseJson(String json) {
+        Map<String, Object> structureMap = (Map<String, Object>) Json.deserialize(json, Map.class);
+        if (structureMap == null) {
+            throw new IllegalArgumentException("Not a map: " + json);
+        }
+        List<Map<String, Object>> childMaps = (List<Map<String, Object>>) structureMap.get("Children");
+        if (childMaps == null) {
+            throw new IllegalArgumentException("Missing children: " + structureMap);
+        }
+        List<StructurePart> result = new ArrayList<>(childMaps.size());
+        for (Map<String, Object> childMap : childMaps) {
+            result.add(new StructurePart(childMap));
+        }
+        return result;
+    }
+
+    public static byte[] encode(List<StructurePart> children) {
+        final List<String> dictionary = new ArrayList<>();
+        final Map<String, Integer> indexes = new HashMap<>();
+        for (StructurePart child : children) {
+            if (indexes.containsKey(child.id)) continue;
+            indexes.put(child.id, dictionary.size());
+            dictionary.add(child.id);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + 24 * children.size());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeShort(dictionary.size());
+            for (String id : dictionary) {
+                out.writeUTF(id);
+            }
+            out.writeInt(children.size());
+            for (StructurePart child : children) {
+                out.writeShort(indexes.get(child.id));
+                final Cuboid bb = child.boundingBox;
+                out.writeInt(bb.ax);
+                out.writeInt(bb.ay);
+                out.writeInt(bb.az);
+                out.writeInt(bb.bx);
+                out.writeInt(bb.by);
+                out.writeInt(bb.bz);
+            }
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode the binary format.  Children with the same piece id
+     * share one String instance.
+     * @throws IllegalArgumentException if the data is malformed
+     */
+    public static List<StructurePart> decode(byte[] data) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            final int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unknown version: " + version);
+            }
+            final String[] dictionary = new String[in.readUnsignedShort()];
+            for (int i = 0; i < dictionary.length; i += 1) {
+                dictionary[i] = in.readUTF();
+            }
+            final int count = in.readInt();
+            final List<StructurePart> result = new ArrayList<>(count);
+            for (int i = 0; i < count; i += 1) {
+                final String id = dictionary[in.readUnsignedShort()];
+                final Cuboid bb = new Cuboid(in.readInt(), in.readInt(), in.readInt(),
+                                             in.readInt(), in.readInt(), in.readInt());
+                result.add(new StructurePart(id, bb));
+            }
+            return result;
+        } catch (IOException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package com.cavetale.structure.cache;
+
+import com.cavetale.core.struct.Cuboid;
+import com.cavetale.structure.sqlite.SQLiteDataStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import org.bukkit.NamespacedKey;
+
+/**
+ * Columnar index of the bounding boxes of all structures in a world.
+ * Every structure takes one entry in a set of parallel primitive
+ * arrays: id, StructureTypes ordinal, bounding box and one bit for
+ * the discovered flag.  This answers existence, count and range
+ * queries anywhere in the world without loading regions or creating
+ * Structure objects.
+ *
+ * Entries are grouped by the region of their minimum corner, and the
+ * regions are ordered along a Z-order curve, so that a query only
+ * scans the entries of nearby regions, which are mostly adjacent in
+ * memory.
+ *
+ * Like the StructureIndex, the structures added since the build are
+ * kept in a short list which queries scan, until it is merged into
+ * the columns on the writer thread.  See LayeredIndex.  Queries are
+ * safe from any thread.  Changes must come from one thread at a
+ * time.
+ */
+public final class StructureColumns {
+    private final LayeredIndex<Columns, Entry> layers = new LayeredIndex<>(new ColumnsLayer(), Columns.EMPTY);
+
+    /**
+     * Receives the index of each matching entry.  Returning false
+     * ends the scan.
+     */
+    @FunctionalInterface
+    private interface Hit {
+        boolean accept(Columns columns, int index);
+    }
+
+    /**
+     * A structure added since the build.
+     */
+    private record Entry(int id, int type, Cuboid boundingBox, boolean discovered) {
+        static Entry of(Structure structure) {
+            return new Entry(structure.getId(), structure.typeOrdinal, structure.getBoundingBox(), structure.isDiscovered());
+        }
+
+        boolean matches(Cuboid cuboid, StructureTypeSet typeSet, Boolean filter) {
+            return boundingBox.overlaps(cuboid)
+                && (typeSet == null || typeSet.contains(type))
+                && (filter == null || discovered == filter.booleanValue());
+        }
+
+        StructureBox toBox() {
+            return new StructureBox(id, StructureTypes.key(type), boundingBox, discovered);
+        }
+    }
+
+    /**
+     * Merges the recent entries into new columns.
+     */
+    private static final class ColumnsLayer implements LayeredIndex.Layer<Columns, Entry> {
+        @Override
+        public int size(Columns main) {
+            return main.size;
+        }
+
+        @Override
+        public Columns merge(Columns main, List<Entry> entries) {
+            final Builder builder = new Builder();
+            builder.addAll(main);
+            for (Entry entry : entries) builder.add(entry);
+            return builder.build();
+        }
+
+        @Override
+        public boolean update(Columns main, Entry entry) {
+            return main.setDiscovered(entry.id(), entry.boundingBox().ax, entry.boundingBox().az, entry.discovered());
+        }
+
+        @Override
+        public boolean matches(Entry a, Entry b) {
+            return a.id() == b.id();
+        }
+    }
+
+    public boolean isReady() {
+        return layers.isReady();
+    }
+
+    /**
+     * Get the number of indexed structures.
+     */
+    public int size() {
+        return layers.size();
+    }
+
+    /**
+     * Read all bounding boxes from the data store and publish the
+     * columns.  Blocks while reading.
+     * @param executor runs the merges, or null to merge on the
+     *   calling thread
+     */
+    protected void build(SQLiteDataStore dataStore, Executor executor) {
+        final Builder builder = new Builder();
+        final Map<String, Integer> ordinals = new HashMap<>();
+        final int[] maxId = new int[1];
+        dataStore.forEachStructureBox((id, type, ax, ay, az, bx, by, bz, discovered) -> {
+                Integer ordinal = ordinals.get(type);
+                if (ordinal == null) {
+                    final NamespacedKey key = NamespacedKey.fromString(type);
+                    if (key == null) return;
+                    ordinal = StructureTypes.ordinal(key);
+                    ordinals.put(type, ordinal);
+                }
+                builder.add(id, ordinal, ax, ay, az, bx, by, bz, discovered);
+                maxId[0] = Math.max(maxId[0], id);
+            });
+        // The build saw every structure up to maxId
+        layers.build(builder.build(), entry -> entry.id() <= maxId[0], executor);
+    }
+
+    public void clear() {
+        layers.clear();
+    }
+
+    /**
+     * Add a structure which was just inserted into the data store.
+     */
+    protected void add(Structure structure) {
+        layers.add(Entry.of(structure));
+    }
+
+    /**
+     * Update the discovered flag of a structure.
+     */
+    protected void setDiscovered(Structure structure) {
+        layers.update(Entry.of(structure));
+    }
+
+    /**
+     * Check if any structure matching the filters overlaps the
+     * cuboid.
+     * @param types the types to match, or null for all
+     * @param discovered the discovered flag to match, or null for
+     *   any
+     */
+    public boolean anyWithin(Cuboid cuboid, StructureTypeSet types, Boolean discovered) {
+        final LayeredIndex.Parts<Columns, Entry> current = layers.parts();
+        if (!current.main().scan(cuboid, types, discovered, (columns, index) -> false)) return true;
+        for (Entry entry : current.recent()) {
+            if (entry.matches(cuboid, types, discovered)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Count the structures matching the filters which overlap the
+     * cuboid.  See anyWithin.
+     */
+    public int countWithin(Cuboid cuboid, StructureTypeSet types, Boolean discovered) {
+        final LayeredIndex.Parts<Columns, Entry> current = layers.parts();
+        final int[] count = new int[1];
+        current.main().scan(cuboid, types, discovered, (columns, index) -> {
+                count[0] += 1;
+                return true;
+            });
+        for (Entry entry : current.recent()) {
+            if (entry.matches(cuboid, types, discovered)) count[0] += 1;
+        }
+        return count[0];
+    }
+
+    /**
+     * Get the bounding boxes of the structures matching the filters
+     * which overlap the cuboid, in no particular order.  See
+     * anyWithin.
+     */
+    public List<StructureBox> within(Cuboid cuboid, StructureTypeSet types, Boolean discovered) {
+        final LayeredIndex.Parts<Columns, Entry> current = layers.parts();
+        final List<StructureBox> result = new ArrayList<>();
+        current.main().scan(cuboid, types, discovered, (columns, index) -> {
+                result.add(columns.boxAt(index));
+                return true;
+            });
+        for (Entry entry : current.recent()) {
+            if (entry.matches(cuboid, types, discovered)) result.add(entry.toBox());
+        }
+        return result;
+    }
+
+    /**
+     * Get the Z-order key of a region.  Flipping the sign bits makes
+     * negative coordinates sort before positive ones.
+     */
+    static long cellKey(int regionX, int regionZ) {
+        return spread(regionX ^ Integer.MIN_VALUE) | (spread(regionZ ^ Integer.MIN_VALUE) << 1);
+    }
+
+    /**
+     * Spread the 32 bits of the value over the even bits of a long.
+     */
+    private static long spread(int value) {
+        long x = value & 0xFFFFFFFFL;
+        x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x << 2)) & 0x3333333333333333L;
+        x = (x | (x << 1)) & 0x5555555555555555L;
+        return x;
+    }
+
+    /**
+     * One immutable set of columns.  Only the discovered bits change
+     * after the build.  They are written by one thread at a time, and
+     * readers may see a change a moment late.
+     */
+    private static final class Columns {
+        static final Columns EMPTY = new Builder().build();
+        final int size;
+        private final int[] ids;
+        private final int[] types;
+        private final int[] ax;
+        private final int[] ay;
+        private final int[] az;
+        private final int[] bx;
+        private final int[] by;
+        private final int[] bz;
+        private final long[] discovered;
+        /** The Z-order keys of all regions with entries, ascending. */
+        private final long[] cellKeys;
+        /** The first entry of each cell, plus the size at the end. */
+        private final int[] cellStarts;
+        /** The largest extent of any entry along x and z. */
+        private final int maxWidth;
+        private final int maxDepth;
+
+        /**
+         * Sort the entries of the builder into their cells.  The
+         * sort is stable, so entries keep their order within a cell.
+         */
+        Columns(final Builder builder) {
+            this.size = builder.size;
+            final long[] entryKeys = new long[size];
+            for (int i = 0; i < size; i += 1) {
+                entryKeys[i] = cellKey(builder.ax[i] >> 9, builder.az[i] >> 9);
+            }
+            final long[] sorted = entryKeys.clone();
+            Arrays.sort(sorted);
+            int cellCount = 0;
+            for (int i = 0; i < size; i += 1) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) sorted[cellCount++] = sorted[i];
+            }
+            this.cellKeys = Arrays.copyOf(sorted, cellCount);
+            this.cellStarts = new int[cellCount + 1];
+            final int[] cells = new int[size];
+            for (int i = 0; i < size; i += 1) {
+                cells[i] = Arrays.binarySearch(cellKeys, entryKeys[i]);
+                cellStarts[cells[i] + 1] += 1;
+            }
+            for (int i = 0; i < cellCount; i += 1) cellStarts[i + 1] += cellStarts[i];
+            final int[] next = Arrays.copyOf(cellStarts, cellCount);
+            this.ids = new int[size];
+            this.types = new int[size];
+            this.ax = new int[size];
+            this.ay = new int[size];
+            this.az = new int[size];
+            this.bx = new int[size];
+            this.by = new int[size];
+            this.bz = new int[size];
+            this.discovered = new long[(size + 63) >> 6];
+            int width = 0;
+            int depth = 0;
+            for (int i = 0; i < size; i += 1) {
+                final int j = next[cells[i]]++;
+                ids[j] = builder.ids[i];
+                types[j] = builder.types[i];
+                ax[j] = builder.ax[i];
+                ay[j] = builder.ay[i];
+                az[j] = builder.az[i];
+                bx[j] = builder.bx[i];
+                by[j] = builder.by[i];
+                bz[j] = builder.bz[i];
+                if (builder.discovered[i]) discovered[j >> 6] |= 1L << j;
+                width = Math.max(width, bx[j] - ax[j]);
+                depth = Math.max(depth, bz[j] - az[j]);
+            }
+            this.maxWidth = width;
+            this.maxDepth = depth;
+        }
+
+        boolean isDiscovered(int index) {
+            return (discovered[index >> 6] & (1L << index)) != 0L;
+        }
+
+        StructureBox boxAt(int index) {
+            return new StructureBox(ids[index], StructureTypes.key(types[index]),
+                                    new Cuboid(ax[index], ay[index], az[index], bx[index], by[index], bz[index]),
+                                    isDiscovered(index));
+        }
+
+        /**
+         * Set the discovered flag of the entry with this id, which
+         * has its minimum corner at the given x and z.
+         * @return true if it was found
+         */
+        boolean setDiscovered(int id, int x, int z, boolean value) {
+            final int cell = Arrays.binarySearch(cellKeys, cellKey(x >> 9, z >> 9));
+            if (cell < 0) return false;
+            for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i += 1) {
+                if (ids[i] != id) continue;
+                if (value) {
+                    discovered[i >> 6] |= 1L << i;
+                } else {
+                    discovered[i >> 6] &= ~(1L << i);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Offer the entries matching the filters which overlap the
+         * cuboid to the hit.
+         * @return false if the hit ended the scan
+         */
+        boolean scan(Cuboid cuboid, StructureTypeSet typeSet, Boolean filter, Hit hit) {
+            if (size == 0) return true;
+            // Entries overlapping the cuboid have their minimum
+            // corner in these regions.
+            final int rax = (int) (((long) cuboid.ax - maxWidth) >> 9);
+            final int raz = (int) (((long) cuboid.az - maxDepth) >> 9);
+            final int rbx = cuboid.bx >> 9;
+            final int rbz = cuboid.bz >> 9;
+            if ((long) (rbx - rax + 1) * (long) (rbz - raz + 1) >= cellKeys.length) {
+                return scan(0, size, cuboid, typeSet, filter, hit);
+            }
+            for (int regionZ = raz; regionZ <= rbz; regionZ += 1) {
+                for (int regionX = rax; regionX <= rbx; regionX += 1) {
+                    final int cell = Arrays.binarySearch(cellKeys, cellKey(regionX, regionZ));
+                    if (cell < 0) continue;
+                    if (!scan(cellStarts[cell], cellStarts[cell + 1], cuboid, typeSet, filter, hit)) return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean scan(int from, int to, Cuboid cuboid, StructureTypeSet typeSet, Boolean filter, Hit hit) {
+            for (int i = from; i < to; i += 1) {
+                if (ax[i] > cuboid.bx || bx[i] < cuboid.ax
+                    || az[i] > cuboid.bz || bz[i] < cuboid.az
+                    || ay[i] > cuboid.by || by[i] < cuboid.ay) {
+                    continue;
+                }
+                if (typeSet != null && !typeSet.contains(types[i])) continue;
+                if (filter != null && isDiscovered(i) != filter.booleanValue()) continue;
+                if (!hit.accept(this, i)) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Collects entries in growable arrays.
+     */
+    private static final class Builder {
+        private int[] ids = new int[64];
+        private int[] types = new int[64];
+        private int[] ax = new int[64];
+        private int[] ay = new int[64];
+        private int[] az = new int[64];
+        private int[] bx = new int[64];
+        private int[] by = new int[64];
+        private int[] bz = new int[64];
+        private boolean[] discovered = new boolean[64];
+        private int size;
+
+        void add(int id, int type, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, boolean isDiscovered) {
+            if (size == ids.length) {
+                final int capacity = size * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                types = Arrays.copyOf(types, capacity);
+                ax = Arrays.copyOf(ax, capacity);
+                ay = Arrays.copyOf(ay, capacity);
+                az = Arrays.copyOf(az, capacity);
+                bx = Arrays.copyOf(bx, capacity);
+                by = Arrays.copyOf(by, capacity);
+                bz = Arrays.copyOf(bz, capacity);
+                discovered = Arrays.copyOf(discovered, capacity);
+            }
+            ids[size] = id;
+            types[size] = type;
+            ax[size] = minX;
+            ay[size] = minY;
+            az[size] = minZ;
+            bx[size] = maxX;
+            by[size] = maxY;
+            bz[size] = maxZ;
+            discovered[size] = isDiscovered;
+            size += 1;
+        }
+
+        void add(Entry entry) {
+            final Cuboid bb = entry.boundingBox();
+            add(entry.id(), entry.type(), bb.ax, bb.ay, bb.az, bb.bx, bb.by, bb.bz, entry.discovered());
+        }
+
+        void addAll(Columns columns) {
+            for (int i = 0; i < columns.size; i += 1) {
+                add(columns.ids[i], columns.types[i],
+                    columns.ax[i], columns.ay[i], columns.az[i],
+                    columns.bx[i], columns.by[i], columns.bz[i],
+                    columns.isDiscovered(i));
+            }
+        }
+
+        Columns build() {
+            return new Columns(this);
+        }
+    }
+}
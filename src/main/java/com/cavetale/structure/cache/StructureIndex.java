@@ -0,0 +1,222 @@
+package com.cavetale.structure.cache;
+
+import com.cavetale.core.struct.Cuboid;
+import com.cavetale.structure.sqlite.SQLiteDataStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * World wide index of the centers of all structures, by type.  It
+ * answers nearest and radius queries without loading any regions.
+ *
+ * Each type has a tree built from the data store.  The structures
+ * added since are kept in a short list which queries scan, until it
+ * is merged into the trees on the writer thread.  See LayeredIndex.
+ * Queries are safe from any thread.  Changes must come from one
+ * thread at a time.
+ *
+ * The index is built on the writer thread when the world is enabled.
+ * Until it is ready, queries find nothing, and changes are kept to
+ * be applied on top of the build.
+ */
+public final class StructureIndex {
+    private final LayeredIndex<Map<String, CenterTree>, StructureCenter> layers = new LayeredIndex<>(new Trees(), Map.of());
+
+    /**
+     * Merges the recent centers into the trees of their types.
+     */
+    private static final class Trees implements LayeredIndex.Layer<Map<String, CenterTree>, StructureCenter> {
+        @Override
+        public int size(Map<String, CenterTree> main) {
+            int result = 0;
+            for (CenterTree tree : main.values()) result += tree.size();
+            return result;
+        }
+
+        @Override
+        public Map<String, CenterTree> merge(Map<String, CenterTree> main, List<StructureCenter> entries) {
+            final Map<String, List<StructureCenter>> byType = new HashMap<>();
+            for (StructureCenter center : entries) {
+                byType.computeIfAbsent(center.type(), t -> new ArrayList<>()).add(center);
+            }
+            final Map<String, CenterTree> result = new HashMap<>(main);
+            for (Map.Entry<String, List<StructureCenter>> entry : byType.entrySet()) {
+                final String type = entry.getKey();
+                result.put(type, CenterTree.merge(type, main.getOrDefault(type, CenterTree.EMPTY), CenterTree.EMPTY, entry.getValue()));
+            }
+            return Map.copyOf(result);
+        }
+
+        @Override
+        public boolean update(Map<String, CenterTree> main, StructureCenter center) {
+            final CenterTree tree = main.get(center.type());
+            return tree != null && tree.setDiscovered(center.id(), center.x(), center.z(), center.discovered());
+        }
+
+        @Override
+        public boolean matches(StructureCenter a, StructureCenter b) {
+            return a.id() == b.id();
+        }
+    }
+
+    public boolean isReady() {
+        return layers.isReady();
+    }
+
+    public Set<String> getTypes() {
+        final LayeredIndex.Parts<Map<String, CenterTree>, StructureCenter> current = layers.parts();
+        final Set<String> result = new HashSet<>(current.main().keySet());
+        for (StructureCenter center : current.recent()) result.add(center.type());
+        return result;
+    }
+
+    /**
+     * Get the number of indexed structures.
+     */
+    public int size() {
+        return layers.size();
+    }
+
+    /**
+     * Read all structure centers from the data store and publish the
+     * trees.  Blocks while reading.
+     * @param executor runs the merges, or null to merge on the
+     *   calling thread
+     */
+    protected void build(SQLiteDataStore dataStore, Executor executor) {
+        final Map<String, Builder> builders = new HashMap<>();
+        final int[] maxId = new int[1];
+        dataStore.forEachStructureCenter((id, type, x, z, discovered) -> {
+                builders.computeIfAbsent(type, Builder::new).add(id, x, z, discovered);
+                maxId[0] = Math.max(maxId[0], id);
+            });
+        final Map<String, CenterTree> result = new HashMap<>();
+        for (Builder builder : builders.values()) {
+            result.put(builder.type, builder.build());
+        }
+        // The build saw every structure up to maxId
+        layers.build(Map.copyOf(result), center -> center.id() <= maxId[0], executor);
+    }
+
+    public void clear() {
+        layers.clear();
+    }
+
+    protected static StructureCenter centerOf(Structure structure) {
+        final Cuboid bb = structure.getBoundingBox();
+        return new StructureCenter(structure.getId(), structure.getKey().toString(),
+                                   (bb.ax + bb.bx) >> 1, (bb.az + bb.bz) >> 1,
+                                   structure.isDiscovered());
+    }
+
+    /**
+     * Add a structure which was just inserted into the data store.
+     */
+    protected void add(Structure structure) {
+        layers.add(centerOf(structure));
+    }
+
+    /**
+     * Update the discovered flag of a structure.
+     */
+    protected void setDiscovered(Structure structure) {
+        layers.update(centerOf(structure));
+    }
+
+    /**
+     * Find the structures nearest to a point, nearest first.
+     * @param count the maximum number of results
+     * @param type the structure type, or null for all types
+     * @param discovered the discovered flag to match, or null for
+     *   any
+     */
+    public List<StructureCenter> nearest(int x, int z, int count, String type, Boolean discovered) {
+        if (count <= 0) return List.of();
+        final LayeredIndex.Parts<Map<String, CenterTree>, StructureCenter> current = layers.parts();
+        final CenterTree.Nearest result = new CenterTree.Nearest(count);
+        for (CenterTree tree : select(current.main(), type)) {
+            tree.nearest(x, z, discovered, result);
+        }
+        for (StructureCenter center : current.recent()) {
+            if (!matches(center, type, discovered)) continue;
+            final long distance = center.distanceSquared(x, z);
+            if (distance < result.worst()) result.offer(distance, center);
+        }
+        return result.toList();
+    }
+
+    /**
+     * Find all structures within a radius of a point, nearest first.
+     * @param type the structure type, or null for all types
+     * @param discovered the discovered flag to match, or null for
+     *   any
+     */
+    public List<StructureCenter> withinRadius(int x, int z, int radius, String type, Boolean discovered) {
+        final long radiusSquared = (long) radius * (long) radius;
+        final LayeredIndex.Parts<Map<String, CenterTree>, StructureCenter> current = layers.parts();
+        final List<StructureCenter> result = new ArrayList<>();
+        for (CenterTree tree : select(current.main(), type)) {
+            tree.withinRadius(x, z, radiusSquared, discovered, result);
+        }
+        for (StructureCenter center : current.recent()) {
+            if (!matches(center, type, discovered)) continue;
+            if (center.distanceSquared(x, z) <= radiusSquared) result.add(center);
+        }
+        result.sort(Comparator.comparingLong(center -> center.distanceSquared(x, z)));
+        return result;
+    }
+
+    private static Collection<CenterTree> select(Map<String, CenterTree> main, String type) {
+        if (type == null) return main.values();
+        final CenterTree tree = main.get(type);
+        return tree != null ? List.of(tree) : List.of();
+    }
+
+    private static boolean matches(StructureCenter center, String type, Boolean discovered) {
+        return (type == null || type.equals(center.type()))
+            && (discovered == null || center.discovered() == discovered.booleanValue());
+    }
+
+    /**
+     * Collects the centers of one type while reading.
+     */
+    private static final class Builder {
+        private final String type;
+        private int[] ids = new int[64];
+        private int[] xs = new int[64];
+        private int[] zs = new int[64];
+        private boolean[] discovered = new boolean[64];
+        private int size;
+
+        Builder(final String type) {
+            this.type = type;
+        }
+
+        void add(int id, int x, int z, boolean isDiscovered) {
+            if (size == ids.length) {
+                final int capacity = size * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                xs = Arrays.copyOf(xs, capacity);
+                zs = Arrays.copyOf(zs, capacity);
+                discovered = Arrays.copyOf(discovered, capacity);
+            }
+            ids[size] = id;
+            xs[size] = x;
+            zs[size] = z;
+            discovered[size] = isDiscovered;
+            size += 1;
+        }
+
+        CenterTree build() {
+            return new CenterTree(type, ids, xs, zs, discovered, size);
+        }
+    }
+}
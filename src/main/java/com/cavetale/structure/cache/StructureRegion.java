@@ -1,10 +1,289 @@
 package com.cavetale.structure.cache;
 
+import com.cavetale.core.struct.Cuboid;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.block.Biome;
 
+/**
+ * A 512x512 block region of cached structures.
+ *
+ * A region enters the cache in the LOADING state while its
+ * structures are being fetched from the data store in the
+ * background.  During that time the structure list is empty, so all
+ * lookups will treat the region as if it contained no structures.
+ * Once the data arrives on the main thread, the region switches to
+ * LOADED and the future is completed.
+ *
+ * Point lookups go through a uniform grid of the 32x32 chunks in the
+ * region.  Each cell holds the structures whose bounding box
+ * intersects that chunk column.  For queries filtered by type, the
+ * structures are also bucketed by StructureTypes ordinal.  Two
+ * bitmaps of the chunks let lookups in empty chunks return after a
+ * single bit test: one marks the chunks covered by any bounding box,
+ * the other only the chunks where a structure can actually be found,
+ * which for structures with children means the chunks covered by one
+ * of their parts.
+ *
+ * Chunk biomes are stored as a palette of the distinct biomes in the
+ * region plus one byte per chunk, which is the palette index plus
+ * one, or 0 if the biome is unknown.
+ *
+ * Only the main thread changes a region.  Lookups read the current
+ * Snapshot instead, which is immutable, so they are safe from any
+ * thread.  Changes are made to the working copy and take effect once
+ * they are published, which happens when the region is loaded or via
+ * publish().
+ */
+@Getter
+@RequiredArgsConstructor
 public final class StructureRegion {
+    private static final Structure[] EMPTY = new Structure[0];
+    private static final long[] NO_CHUNKS = new long[32 * 32 / 64];
+    /**
+     * Stands in for all regions known to contain no structures.  It
+     * is loaded, never cached, and never changed.
+     */
+    protected static final StructureRegion EMPTY_REGION = new StructureRegion(0, 0);
+
+    static {
+        EMPTY_REGION.setLoaded();
+    }
+
+    protected final int x;
+    protected final int z;
+    /** The working copy of the structures.  Main thread only. */
+    @Getter(AccessLevel.NONE)
     protected final List<Structure> structures = new ArrayList<>();
+    protected final CompletableFuture<StructureRegion> future = new CompletableFuture<>();
+    @Getter(AccessLevel.NONE)
+    private final Structure[][] grid = new Structure[32 * 32][];
+    /** Chunks intersecting any bounding box, one bit per chunk index. */
+    @Getter(AccessLevel.NONE)
+    private final long[] boxChunks = new long[32 * 32 / 64];
+    /** Chunks intersecting a part, or the bounding box if there are none. */
+    @Getter(AccessLevel.NONE)
+    private final long[] partChunks = new long[32 * 32 / 64];
+    @Getter(AccessLevel.NONE)
+    private RegionBiomes biomes;
+    @Getter(AccessLevel.NONE)
+    protected volatile Snapshot snapshot = new Snapshot(State.LOADING, EMPTY, new Structure[0][], new Structure[32 * 32][],
+                                                                   NO_CHUNKS, NO_CHUNKS, null);
     protected int referenceCount;
-    protected long lastUse;
+    protected long lastUse; // server tick
+    protected int useCount; // for EvictionPolicy
+    /**
+     * Failed loads in a row, and the tick before which no other load
+     * may start.  Main thread only.
+     */
+    protected int loadFailures;
+    protected long retryTick;
+    /**
+     * The estimated heap size in bytes.  Structures which span several
+     * regions are counted in each of them.
+     */
+    protected long estimatedSize = BASE_SIZE;
+    private static final long BASE_SIZE = 8L * 1024L;
+
+    public enum State {
+        LOADING,
+        LOADED;
+    }
+
+    /**
+     * The published state of a region.  None of the arrays are ever
+     * modified.  The grid cells are shared with later snapshots
+     * because cells are replaced rather than changed.
+     */
+    protected record Snapshot(State state, Structure[] structures, Structure[][] byType, Structure[][] grid,
+                              long[] boxChunks, long[] partChunks, RegionBiomes biomes) {
+        public boolean isLoaded() {
+            return state == State.LOADED;
+        }
+
+        /**
+         * Check if any bounding box intersects the chunk column
+         * containing the given block.  The block must be within this
+         * region.
+         */
+        public boolean hasBoxAt(int blockX, int blockZ) {
+            final int index = (((blockZ >> 4) & 31) << 5) | ((blockX >> 4) & 31);
+            return (boxChunks[index >> 6] & (1L << index)) != 0L;
+        }
+
+        /**
+         * Check if a structure could be found in the chunk column
+         * containing the given block, which for structures with
+         * children requires one of their parts to intersect it.  The
+         * block must be within this region.
+         */
+        public boolean hasPartAt(int blockX, int blockZ) {
+            final int index = (((blockZ >> 4) & 31) << 5) | ((blockX >> 4) & 31);
+            return (partChunks[index >> 6] & (1L << index)) != 0L;
+        }
+
+        /**
+         * Get the structures whose bounding box intersects the chunk
+         * column containing the given block.  The block must be
+         * within this region.  The returned array may not be
+         * modified.
+         */
+        public Structure[] getStructuresAt(int blockX, int blockZ) {
+            final Structure[] cell = grid[(((blockZ >> 4) & 31) << 5) | ((blockX >> 4) & 31)];
+            return cell != null ? cell : EMPTY;
+        }
+
+        /**
+         * Get the biome of the chunk containing the given block, or
+         * null if it is unknown.  The block must be within this
+         * region.
+         */
+        public Biome getBiomeAt(int blockX, int blockZ) {
+            return biomes != null ? biomes.getBiomeAt(blockX, blockZ) : null;
+        }
+
+        /**
+         * Get the structures of one type.  The returned array may not
+         * be modified.
+         */
+        public Structure[] getStructuresOfType(int typeOrdinal) {
+            final Structure[] bucket = typeOrdinal < byType.length ? byType[typeOrdinal] : null;
+            return bucket != null ? bucket : EMPTY;
+        }
+
+        public boolean containsId(int id) {
+            for (Structure structure : structures) {
+                if (structure.getId() == id) return true;
+            }
+            return false;
+        }
+    }
+
+    public State getState() {
+        return snapshot.state;
+    }
+
+    public boolean isLoaded() {
+        return snapshot.isLoaded();
+    }
+
+    /**
+     * Get the published structures.  May be called from any thread.
+     */
+    public List<Structure> getStructures() {
+        return Collections.unmodifiableList(Arrays.asList(snapshot.structures));
+    }
+
+    /**
+     * Add a structure and insert it into the grid cells its bounding
+     * box covers within this region, and mark the chunks it occupies.
+     * Lookups will not see it until the next publish.
+     */
+    protected void addStructure(Structure structure) {
+        structures.add(structure);
+        estimatedSize += structure.estimateSize();
+        final Cuboid bb = structure.boundingBox;
+        markChunks(boxChunks, bb);
+        if (structure.hasChildren()) {
+            for (StructurePart part : structure.children) {
+                markChunks(partChunks, part.boundingBox);
+            }
+        } else {
+            markChunks(partChunks, bb);
+        }
+        final int minX = x << 5;
+        final int minZ = z << 5;
+        final int ax = Math.max(0, (bb.ax >> 4) - minX);
+        final int az = Math.max(0, (bb.az >> 4) - minZ);
+        final int bx = Math.min(31, (bb.bx >> 4) - minX);
+        final int bz = Math.min(31, (bb.bz >> 4) - minZ);
+        for (int cz = az; cz <= bz; cz += 1) {
+            for (int cx = ax; cx <= bx; cx += 1) {
+                final int index = (cz << 5) | cx;
+                final Structure[] cell = grid[index];
+                if (cell == null) {
+                    grid[index] = new Structure[] {structure};
+                } else {
+                    final Structure[] newCell = Arrays.copyOf(cell, cell.length + 1);
+                    newCell[cell.length] = structure;
+                    grid[index] = newCell;
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the bits of the chunks the cuboid covers within this
+     * region.
+     */
+    private void markChunks(long[] bits, Cuboid cuboid) {
+        final int minX = x << 5;
+        final int minZ = z << 5;
+        final int ax = Math.max(0, (cuboid.ax >> 4) - minX);
+        final int az = Math.max(0, (cuboid.az >> 4) - minZ);
+        final int bx = Math.min(31, (cuboid.bx >> 4) - minX);
+        final int bz = Math.min(31, (cuboid.bz >> 4) - minZ);
+        for (int cz = az; cz <= bz; cz += 1) {
+            for (int cx = ax; cx <= bx; cx += 1) {
+                final int index = (cz << 5) | cx;
+                bits[index >> 6] |= 1L << index;
+            }
+        }
+    }
+
+    protected Structure[] getStructuresAt(int blockX, int blockZ) {
+        return snapshot.getStructuresAt(blockX, blockZ);
+    }
+
+    /**
+     * Build the biome palette.  See RegionBiomes.
+     * @param biomes the biome of each chunk, by chunk index
+     */
+    protected void setBiomes(Biome[] biomes) {
+        this.biomes = RegionBiomes.of(biomes);
+    }
+
+    protected Biome getBiomeAt(int blockX, int blockZ) {
+        return snapshot.getBiomeAt(blockX, blockZ);
+    }
+
+    /**
+     * Make the changes to the working copy visible to lookups.
+     */
+    protected void publish() {
+        publish(snapshot.state);
+    }
+
+    private void publish(State state) {
+        final Structure[] array = structures.toArray(EMPTY);
+        snapshot = new Snapshot(state, array, bucketByType(array), grid.clone(),
+                                boxChunks.clone(), partChunks.clone(), biomes);
+    }
+
+    private static Structure[][] bucketByType(Structure[] array) {
+        int maxOrdinal = -1;
+        for (Structure structure : array) maxOrdinal = Math.max(maxOrdinal, structure.typeOrdinal);
+        final int[] counts = new int[maxOrdinal + 1];
+        for (Structure structure : array) counts[structure.typeOrdinal] += 1;
+        final Structure[][] result = new Structure[maxOrdinal + 1][];
+        for (int i = 0; i < counts.length; i += 1) {
+            if (counts[i] > 0) result[i] = new Structure[counts[i]];
+            counts[i] = 0;
+        }
+        for (Structure structure : array) {
+            result[structure.typeOrdinal][counts[structure.typeOrdinal]++] = structure;
+        }
+        return result;
+    }
+
+    protected void setLoaded() {
+        publish(State.LOADED);
+        future.complete(this);
+    }
 }
@@ -0,0 +1,91 @@
+package com.cavetale.structure.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import org.bukkit.NamespacedKey;
+
+/**
+ * An immutable set of structure types to filter queries by, stored
+ * as a bit set of StructureTypes ordinals.
+ */
+public final class StructureTypeSet {
+    private final long[] bits;
+    private final int[] ordinals;
+
+    private StructureTypeSet(final long[] bits) {
+        this.bits = bits;
+        int count = 0;
+        for (long word : bits) count += Long.bitCount(word);
+        this.ordinals = new int[count];
+        int i = 0;
+        for (int word = 0; word < bits.length; word += 1) {
+            for (long rest = bits[word]; rest != 0L; rest &= rest - 1L) {
+                ordinals[i++] = (word << 6) + Long.numberOfTrailingZeros(rest);
+            }
+        }
+    }
+
+    public static StructureTypeSet of(NamespacedKey... keys) {
+        return of(Arrays.asList(keys));
+    }
+
+    public static StructureTypeSet of(Collection<NamespacedKey> keys) {
+        long[] bits = new long[0];
+        for (NamespacedKey key : keys) {
+            final int ordinal = StructureTypes.ordinal(key);
+            final int word = ordinal >> 6;
+            if (word >= bits.length) bits = Arrays.copyOf(bits, word + 1);
+            bits[word] |= 1L << ordinal;
+        }
+        return new StructureTypeSet(bits);
+    }
+
+    public boolean contains(int ordinal) {
+        final int word = ordinal >> 6;
+        return word < bits.length && (bits[word] & (1L << ordinal)) != 0L;
+    }
+
+    public boolean contains(Structure structure) {
+        return contains(structure.typeOrdinal);
+    }
+
+    /**
+     * Get the ordinals in ascending order.  The array may not be
+     * modified.
+     */
+    int[] ordinals() {
+        return ordinals;
+    }
+
+    public boolean isEmpty() {
+        return ordinals.length == 0;
+    }
+
+    /**
+     * Get the type names as stored in the data store.
+     */
+    public List<String> toNames() {
+        final List<String> result = new ArrayList<>(ordinals.length);
+        for (int ordinal : ordinals) {
+            result.add(StructureTypes.key(ordinal).toString());
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof StructureTypeSet other && Arrays.equals(ordinals, other.ordinals);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(ordinals);
+    }
+
+    @Override
+    public String toString() {
+        return toNames().toString();
+    }
+}
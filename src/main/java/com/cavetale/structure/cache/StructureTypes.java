@@ -0,0 +1,50 @@
+package com.cavetale.structure.cache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bukkit.NamespacedKey;
+
+/**
+ * Process wide numbering of structure types.  Each distinct key
+ * gets the next ordinal the first time it is seen, so ordinals stay
+ * small and dense, and are only valid until the server stops.  They
+ * let regions bucket their structures by type and queries compare
+ * types as ints.  Safe to use from any thread.
+ */
+public final class StructureTypes {
+    private static final Map<NamespacedKey, Integer> ORDINALS = new ConcurrentHashMap<>();
+    private static volatile NamespacedKey[] keys = new NamespacedKey[0];
+
+    private StructureTypes() { }
+
+    public static int ordinal(NamespacedKey key) {
+        final Integer result = ORDINALS.get(key);
+        return result != null ? result : register(key);
+    }
+
+    private static synchronized int register(NamespacedKey key) {
+        final Integer old = ORDINALS.get(key);
+        if (old != null) return old;
+        final int result = keys.length;
+        final NamespacedKey[] newKeys = Arrays.copyOf(keys, result + 1);
+        newKeys[result] = key;
+        keys = newKeys;
+        ORDINALS.put(key, result);
+        return result;
+    }
+
+    /**
+     * Get the key of an ordinal which was handed out before.
+     */
+    public static NamespacedKey key(int ordinal) {
+        return keys[ordinal];
+    }
+
+    /**
+     * Get the number of ordinals handed out so far.
+     */
+    public static int count() {
+        return keys.length;
+    }
+}
@@ -3,22 +3,50 @@ package com.cavetale.structure.cache;
 import com.cavetale.core.struct.Cuboid;
 import com.cavetale.core.struct.Vec2i;
 import com.cavetale.core.struct.Vec3i;
+import com.cavetale.structure.cache.StructureRegion.Snapshot;
 import com.cavetale.structure.event.StructureLoadEvent;
 import com.cavetale.structure.event.StructureUnloadEvent;
+import com.cavetale.structure.metrics.StructureMetrics;
+import com.cavetale.structure.metrics.StructureMetrics.Counter;
+import com.cavetale.structure.metrics.StructureMetrics.Timer;
 import com.cavetale.structure.sqlite.SQLiteDataStore;
+import com.cavetale.structure.sqlite.SQLiteDataStore.BackfillBatch;
+import com.cavetale.structure.sqlite.SQLiteDataStore.RegionStructures;
+import com.cavetale.structure.sqlite.StructureSnapshot;
+import com.cavetale.structure.sqlite.StructureStats;
+import com.cavetale.structure.sqlite.StructureWriteQueue;
+import com.cavetale.structure.sqlite.StructureWriteQueue.PendingWrite;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import org.bukkit.Bukkit;
 import org.bukkit.Chunk;
+import org.bukkit.NamespacedKey;
 import org.bukkit.World;
 import org.bukkit.block.Biome;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.scheduler.BukkitTask;
 import static com.cavetale.structure.StructurePlugin.log;
+import static com.cavetale.structure.StructurePlugin.logger;
 import static com.cavetale.structure.StructurePlugin.structurePlugin;
 import static com.cavetale.structure.StructurePlugin.warn;
 import static java.util.Objects.requireNonNull;
@@ -27,30 +55,240 @@ import static java.util.Objects.requireNonNull;
 @RequiredArgsConstructor
 public final class StructureWorld {
     private final String worldName;
-    private final Map<Integer, Structure> structureCache = new HashMap<>();
-    private final Map<Vec2i, StructureRegion> regionCache = new HashMap<>();
+    /**
+     * Concurrent because the region loader checks which structures
+     * are already cached.  Only modified on the main thread.
+     */
+    private final Map<Integer, Structure> structureCache = new ConcurrentHashMap<>();
+    private final RegionMap<StructureRegion> regionCache = new RegionMap<>();
     private File sqliteFile;
-    private SQLiteDataStore dataStore;
+    private volatile SQLiteDataStore dataStore;
     private BukkitTask pruneTask;
+    /**
+     * The region loaders.  One thread per reader connection of the
+     * data store, so several regions can load at once.
+     */
+    private ExecutorService loaders;
+    /**
+     * The writer.  A single thread because the data store has only
+     * one writer connection.  It flushes the write queue, inserts
+     * structures and runs migrations.
+     */
+    private ScheduledExecutorService executor;
+    /**
+     * Exports the snapshot, which may take a while, so the writer is
+     * free meanwhile.  Null unless the snapshot is enabled.
+     */
+    private ScheduledExecutorService snapshotExecutor;
+    /**
+     * Set while the writer drains on disable.  Background work such
+     * as index builds and backfill is skipped, so only inserts run.
+     */
+    private volatile boolean closing;
+    /** The longest wait for queued inserts on disable. */
+    private static final long DRAIN_SECONDS = 60L;
+    private int readerCount;
+    /**
+     * How chunk loads found their region: loaded, known to be empty,
+     * still loading, or not cached at all.  Prefetching aims to turn
+     * the latter two into hits.  Main thread only.
+     */
+    private long chunkRegionHits;
+    private long chunkRegionEmpty;
+    private long chunkRegionPending;
+    private long chunkRegionMisses;
+    /**
+     * Loaded chunks in regions which were known to be empty and thus
+     * not cached, by packed region key.  They pin their region once
+     * it is cached.  Main thread only.
+     */
+    @Getter(AccessLevel.NONE)
+    private final Map<Long, int[]> emptyRegionChunks = new HashMap<>();
+    /**
+     * Loads off the owner thread which are in flight, and regions
+     * whose prefetch is scheduled on the main thread.
+     */
+    /**
+     * The biomes of regions which were known to be empty, so biomeAt
+     * does not have to query them, and the regions whose biomes are
+     * being loaded.  Changed on the main thread only.
+     */
+    @Getter(AccessLevel.NONE)
+    private final RegionMap<RegionBiomes> emptyRegionBiomes = new RegionMap<>();
+    @Getter(AccessLevel.NONE)
+    private final Set<Long> emptyRegionBiomeLoads = ConcurrentHashMap.newKeySet();
+    @Getter(AccessLevel.NONE)
+    private final Map<DetachedLoad, CompletableFuture<StructureRegion>> detachedLoads = new ConcurrentHashMap<>();
+    @Getter(AccessLevel.NONE)
+    private final Set<Long> detachedPrefetches = ConcurrentHashMap.newKeySet();
+    /** Queries which had to load a region on the main thread. */
+    private long syncRegionLoads;
+    private long prefetchedRegions;
+    private EvictionSettings evictionSettings = EvictionSettings.DEFAULT;
+    @Getter(AccessLevel.NONE)
+    private final long[] evictions = new long[EvictionReason.values().length];
+    private volatile StructureWriteQueue writeQueue;
+    /**
+     * The thread which may change the cache, usually the main thread.
+     * Queries on other threads never change it.
+     */
+    @Getter(AccessLevel.NONE)
+    private Thread ownerThread;
+    private long writeBehindInterval;
+    /** Centers of all structures, for queries beyond the cached regions. */
+    private final StructureIndex index = new StructureIndex();
+    /** Regions with structures, so the others are never loaded. */
+    private final PopulatedRegions populatedRegions = new PopulatedRegions();
+    /** Bounding boxes of all structures, unless disabled. */
+    private final StructureColumns columns = new StructureColumns();
+    @Getter(AccessLevel.NONE)
+    private boolean columnsEnabled;
+    @Getter(AccessLevel.NONE)
+    private boolean snapshotEnabled;
+    @Getter(AccessLevel.NONE)
+    private long snapshotInterval;
+    private static final int BACKFILL_BATCH_SIZE = 500;
+    /** The longest wait before loading a failed region again. */
+    private static final long MAX_RETRY_TICKS = 1200L;
 
     protected void enable(World world) {
-        sqliteFile = new File(world.getWorldFolder(), "structures.db");
+        enable(structurePlugin().getConfig(), new File(world.getWorldFolder(), "structures.db"));
+        pruneTask = Bukkit.getScheduler().runTaskTimer(structurePlugin(), this::prune, 200L, 200L);
+        warmUp(world.getLoadedChunks());
+    }
+
+    /**
+     * Cache the regions of all chunks which were loaded before the
+     * world was enabled, plus the pinned regions.  This does the work
+     * of onChunkLoad for every chunk, but each region is looked up
+     * once, the new regions enter the cache in one go, and they are
+     * loaded in batches spread over the loader threads.
+     *
+     * Must be called on the main thread.
+     */
+    private void warmUp(Chunk[] chunks) {
+        // Chunks per region, in the order they were first seen
+        final Map<Long, int[]> chunkCounts = new LinkedHashMap<>();
+        for (Chunk chunk : chunks) {
+            final long key = RegionMap.pack(chunk.getX() >> 5, chunk.getZ() >> 5);
+            chunkCounts.computeIfAbsent(key, k -> new int[1])[0] += 1;
+        }
+        for (long pinned : evictionSettings.pinnedRegions()) {
+            chunkCounts.putIfAbsent(pinned, new int[1]);
+        }
+        final long[] missingKeys = new long[chunkCounts.size()];
+        final List<StructureRegion> missing = new ArrayList<>();
+        for (Map.Entry<Long, int[]> entry : chunkCounts.entrySet()) {
+            final long key = entry.getKey();
+            final int count = entry.getValue()[0];
+            StructureRegion region = regionCache.get(RegionMap.unpackX(key), RegionMap.unpackZ(key));
+            if (region == null && populatedRegions.isEmpty(RegionMap.unpackX(key), RegionMap.unpackZ(key))) {
+                if (count == 0) continue;
+                chunkRegionEmpty += count;
+                emptyRegionChunks.computeIfAbsent(key, k -> new int[1])[0] += count;
+                continue;
+            } else if (region == null) {
+                region = new StructureRegion(RegionMap.unpackX(key), RegionMap.unpackZ(key));
+                missingKeys[missing.size()] = key;
+                missing.add(region);
+                if (count > 0) {
+                    chunkRegionMisses += 1;
+                    chunkRegionPending += count - 1;
+                }
+            } else if (region.isLoaded()) {
+                chunkRegionHits += count;
+                touchRegion(region);
+            } else {
+                chunkRegionPending += count;
+            }
+            region.referenceCount += count;
+        }
+        if (missing.isEmpty()) return;
+        regionCache.putAll(Arrays.copyOf(missingKeys, missing.size()), missing);
+        for (StructureRegion region : missing) pinEmptyRegionChunks(region);
+        loadAsync(missing);
+    }
+
+    /**
+     * Open the data store file without touching the server.  Nothing
+     * is scheduled on the main thread, so regions are only loaded on
+     * demand and never pruned.  This is how the cache runs headless,
+     * for example in benchmarks.
+     */
+    protected void enable(ConfigurationSection config, File file) {
+        ownerThread = Thread.currentThread();
+        closing = false;
+        readerCount = Math.max(1, config.getInt("sqlite-readers", 2));
+        writeBehindInterval = config.getLong("write-behind-interval", 2000L);
+        columnsEnabled = config.getBoolean("columnar-index", true);
+        snapshotEnabled = config.getBoolean("snapshot.enabled", true);
+        snapshotInterval = Math.max(1L, config.getLong("snapshot.interval", 300L));
+        loaders = Executors.newFixedThreadPool(readerCount, Thread.ofPlatform()
+                                               .name("Structure-" + worldName + "-Loader-", 0)
+                                               .daemon()
+                                               .factory());
+        executor = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+                                                              .name("Structure-" + worldName + "-Writer")
+                                                              .daemon()
+                                                              .factory());
+        if (snapshotEnabled) {
+            snapshotExecutor = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+                                                                          .name("Structure-" + worldName + "-Snapshot")
+                                                                          .daemon()
+                                                                          .factory());
+        }
+        evictionSettings = EvictionSettings.load(config.getConfigurationSection("cache"), worldName);
+        sqliteFile = file;
         if (sqliteFile.exists()) {
-            dataStore = new SQLiteDataStore(worldName, sqliteFile);
-            dataStore.enable();
-            log("[" + worldName + "] Data store enabled");
+            openDataStore();
         } else {
             warn("[" + worldName + "] Data store not found");
         }
-        pruneTask = Bukkit.getScheduler().runTaskTimer(structurePlugin(), this::prune, 200L, 200L);
-        for (Chunk chunk : world.getLoadedChunks()) {
-            onChunkLoad(chunk.getX(), chunk.getZ());
-        }
     }
 
     protected void disable() {
+        if (loaders != null) {
+            loaders.shutdownNow();
+            loaders = null;
+        }
+        if (writeQueue != null) {
+            // Blocks until pending writes are saved, waiting for a
+            // flush already running on the writer
+            writeQueue.flush();
+            writeQueue = null;
+        }
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdownNow();
+            snapshotExecutor = null;
+        }
+        if (executor != null) {
+            // Let queued addStructuresAsync inserts finish, or they
+            // would be lost with their futures never completed.
+            // Periodic tasks are cancelled by shutdown.
+            closing = true;
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(DRAIN_SECONDS, TimeUnit.SECONDS)) {
+                    warn("[" + worldName + "] Writer did not finish within " + DRAIN_SECONDS + " seconds");
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            executor.shutdownNow();
+            executor = null;
+        }
+        for (StructureRegion region : regionCache.values()) {
+            // Loads still in flight will never be applied
+            if (!region.isLoaded()) region.future.cancel(false);
+        }
         structureCache.clear();
+        index.clear();
+        columns.clear();
+        populatedRegions.clear();
         regionCache.clear();
+        emptyRegionChunks.clear();
+        emptyRegionBiomes.clear();
+        emptyRegionBiomeLoads.clear();
         if (dataStore != null) {
             dataStore.disable();
             dataStore = null;
@@ -69,13 +307,177 @@ public final class StructureWorld {
     public SQLiteDataStore getOrCreateDataStore() {
         if (dataStore == null) {
             World world = requireNonNull(Bukkit.getWorld(worldName));
-            dataStore = new SQLiteDataStore(worldName, sqliteFile);
-            dataStore.enable();
-            log("[" + worldName + "] Data store enabled");
+            openDataStore();
         }
         return dataStore;
     }
 
+    private void openDataStore() {
+        dataStore = new SQLiteDataStore(worldName, sqliteFile, readerCount);
+        dataStore.enable();
+        log("[" + worldName + "] Data store enabled");
+        writeQueue = new StructureWriteQueue(worldName, dataStore);
+        final SQLiteDataStore store = dataStore;
+        final ScheduledExecutorService writer = executor;
+        if (writer == null) return;
+        writer.scheduleWithFixedDelay(writeQueue::flush, writeBehindInterval, writeBehindInterval, TimeUnit.MILLISECONDS);
+        final ScheduledExecutorService snapshots = snapshotExecutor;
+        if (snapshots != null) writer.execute(() -> openSnapshot(store, writer, snapshots));
+        writer.execute(() -> buildPopulatedRegions(store, writer));
+        writer.execute(() -> buildStats(store));
+        writer.execute(() -> buildIndex(store, writer));
+        if (columnsEnabled) writer.execute(() -> buildColumns(store, writer));
+        writer.execute(() -> backfillChildren(store, writer, 0, 0));
+    }
+
+    private void buildPopulatedRegions(SQLiteDataStore store, ExecutorService writer) {
+        if (closing) return;
+        final long start = System.currentTimeMillis();
+        try {
+            populatedRegions.build(store, writer);
+        } catch (RuntimeException re) {
+            logger().log(Level.SEVERE, "[" + worldName + "] Building populated regions", re);
+            return;
+        }
+        log("[" + worldName + "] Found " + populatedRegions.size() + " regions with structures"
+            + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void buildIndex(SQLiteDataStore store, ExecutorService writer) {
+        if (closing) return;
+        final long start = System.currentTimeMillis();
+        try {
+            index.build(store, writer);
+        } catch (RuntimeException re) {
+            logger().log(Level.SEVERE, "[" + worldName + "] Building structure index", re);
+            return;
+        }
+        log("[" + worldName + "] Indexed " + index.size() + " structures"
+            + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void buildColumns(SQLiteDataStore store, ExecutorService writer) {
+        if (closing) return;
+        final long start = System.currentTimeMillis();
+        try {
+            columns.build(store, writer);
+        } catch (RuntimeException re) {
+            logger().log(Level.SEVERE, "[" + worldName + "] Building columnar index", re);
+            return;
+        }
+        log("[" + worldName + "] Built columnar index of " + columns.size() + " structures"
+            + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * The snapshot lives next to the database file, named like the
+     * SQLite journal files.
+     */
+    private File getSnapshotFile() {
+        return new File(sqliteFile.getPath() + "-snapshot");
+    }
+
+    /**
+     * Enable change tracking, which may have to index a large table
+     * the first time, then open the snapshot and schedule its updates.
+     * This runs on the writer thread.  Until it is done, all regions
+     * are loaded from the database.
+     *
+     * The write methods mark the regions they change as dirty right
+     * away.  Changes by other processes are polled at the write-behind
+     * interval.
+     */
+    private void openSnapshot(SQLiteDataStore store, ScheduledExecutorService writer, ScheduledExecutorService snapshots) {
+        if (closing) return;
+        try {
+            store.enableChangeTracking();
+            if (store.openSnapshot(getSnapshotFile())) {
+                log("[" + worldName + "] Snapshot opened, " + store.getDirtyRegionCount() + " regions changed since");
+            }
+        } catch (RuntimeException re) {
+            logger().log(Level.SEVERE, "[" + worldName + "] Enabling change tracking", re);
+            return;
+        }
+        if (snapshots.isShutdown()) return;
+        writer.scheduleWithFixedDelay(store::pollChanges, writeBehindInterval, writeBehindInterval, TimeUnit.MILLISECONDS);
+        snapshots.scheduleWithFixedDelay(() -> updateSnapshot(store, snapshots), 0L, snapshotInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Export the regions which changed since the last snapshot.  This
+     * runs on the snapshot thread, and only holds the writer lock at
+     * the very end.
+     *
+     * A snapshot past the size limit cannot be mapped, so the updates
+     * stop for good.  The snapshot in use, if any, stays, and regions
+     * which changed since are loaded from the database.
+     */
+    private void updateSnapshot(SQLiteDataStore store, ScheduledExecutorService snapshots) {
+        final long start = System.currentTimeMillis();
+        final int exported;
+        try {
+            exported = store.updateSnapshot(getSnapshotFile());
+        } catch (StructureSnapshot.TooLargeException tle) {
+            warn("[" + worldName + "] " + tle.getMessage() + ", no longer updating the snapshot");
+            snapshots.shutdown();
+            return;
+        } catch (RuntimeException re) {
+            logger().log(Level.SEVERE, "[" + worldName + "] Updating snapshot", re);
+            return;
+        }
+        if (exported < 0) return;
+        final StructureSnapshot snapshot = store.getSnapshot();
+        log("[" + worldName + "] Snapshot updated, exported " + exported
+            + " of " + (snapshot != null ? snapshot.getRegionCount() : 0) + " regions"
+            + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void buildStats(SQLiteDataStore store) {
+        if (closing) return;
+        final long start = System.currentTimeMillis();
+        try {
+            store.buildStats();
+        } catch (RuntimeException re) {
+            logger().log(Level.SEVERE, "[" + worldName + "] Building statistics", re);
+            return;
+        }
+        log("[" + worldName + "] Built statistics of " + store.getStats().getTypes().size() + " structure types"
+            + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Get the structure statistics, or null if there is no data
+     * store.  May be called from any thread.
+     */
+    public StructureStats getStats() {
+        final SQLiteDataStore store = dataStore;
+        return store != null ? store.getStats() : null;
+    }
+
+    /**
+     * Fill in the binary children column in batches on the writer
+     * thread.  Each batch is queued separately so flushes are not held
+     * up by the migration.
+     * @param afterId the last id of the previous batch
+     * @param total the number of structures updated so far
+     */
+    private void backfillChildren(SQLiteDataStore store, ExecutorService writer, int afterId, int total) {
+        if (closing) return;
+        final BackfillBatch batch;
+        try {
+            batch = store.backfillChildren(afterId, BACKFILL_BATCH_SIZE);
+        } catch (RuntimeException re) {
+            logger().log(Level.SEVERE, "[" + worldName + "] Backfilling children", re);
+            return;
+        }
+        if (batch.count() == 0) {
+            if (total > 0) log("[" + worldName + "] Backfilled children of " + total + " structures");
+            return;
+        }
+        if (writer.isShutdown()) return;
+        writer.execute(() -> backfillChildren(store, writer, batch.lastId(), total + batch.count()));
+    }
+
     public Structure getOrLoadStructure(int id) {
         Structure result = getStructure(id);
         return result != null
@@ -84,48 +486,259 @@ public final class StructureWorld {
     }
 
     public Structure at(Vec3i vec) {
-        final int regionX = vec.x >> 9;
-        final int regionZ = vec.z >> 9;
-        StructureRegion region = getRegion(regionX, regionZ);
-        for (Structure structure : region.structures) {
-            if (!structure.boundingBox.contains(vec)) continue;
-            if (structure.hasChildren() && !structure.childContains(vec)) continue;
-            return structure;
+        return at(vec.x, vec.y, vec.z);
+    }
+
+    /**
+     * Find the structure at the given block.  Once the region is
+     * cached, this does not allocate.
+     */
+    public Structure at(int x, int y, int z) {
+        return at(x, y, z, null);
+    }
+
+    /**
+     * Find the structure of one of the types at the given block.
+     * @param types the types to match, or null for all
+     */
+    public Structure at(int x, int y, int z, StructureTypeSet types) {
+        final long start = StructureMetrics.start(Timer.AT);
+        final Snapshot snapshot = getRegion(x >> 9, z >> 9, types).snapshot;
+        if (!snapshot.hasPartAt(x, z)) {
+            StructureMetrics.stop(Timer.AT, start);
+            return null;
         }
-        return null;
+        Structure result = null;
+        for (Structure structure : snapshot.getStructuresAt(x, z)) {
+            if (types != null && !types.contains(structure.typeOrdinal)) continue;
+            if (!structure.boundingBox.contains(x, y, z)) continue;
+            if (structure.hasChildren() && structure.getChildAt(x, y, z) == null) continue;
+            result = structure;
+            break;
+        }
+        StructureMetrics.stop(Timer.AT, start);
+        return result;
     }
 
     public List<Structure> allAt(Vec3i vec) {
-        final int regionX = vec.x >> 9;
-        final int regionZ = vec.z >> 9;
-        StructureRegion region = getRegion(regionX, regionZ);
+        return allAt(vec.x, vec.y, vec.z);
+    }
+
+    public List<Structure> allAt(int x, int y, int z) {
+        return allAt(x, y, z, null);
+    }
+
+    /**
+     * Find all structures of the types whose bounding box contains
+     * the given block.
+     * @param types the types to match, or null for all
+     */
+    public List<Structure> allAt(int x, int y, int z, StructureTypeSet types) {
+        final long start = StructureMetrics.start(Timer.ALL_AT);
+        final Snapshot snapshot = getRegion(x >> 9, z >> 9, types).snapshot;
+        if (!snapshot.hasBoxAt(x, z)) {
+            StructureMetrics.stop(Timer.ALL_AT, start);
+            return new ArrayList<>();
+        }
         final List<Structure> result = new ArrayList<>();
-        for (Structure structure : region.structures) {
-            if (structure.boundingBox.contains(vec)) result.add(structure);
+        for (Structure structure : snapshot.getStructuresAt(x, z)) {
+            if (types != null && !types.contains(structure.typeOrdinal)) continue;
+            if (structure.boundingBox.contains(x, y, z)) result.add(structure);
         }
+        StructureMetrics.stop(Timer.ALL_AT, start);
         return result;
     }
 
     public List<Structure> within(Cuboid cuboid) {
         List<Structure> list = new ArrayList<>();
+        forEachWithin(cuboid, list::add);
+        return list;
+    }
+
+    /**
+     * Find all structures of the types overlapping the cuboid.
+     * @param types the types to match, or null for all
+     */
+    public List<Structure> within(Cuboid cuboid, StructureTypeSet types) {
+        List<Structure> list = new ArrayList<>();
+        forEachWithin(cuboid, types, list::add);
+        return list;
+    }
+
+    /**
+     * Visit each structure overlapping the cuboid exactly once.
+     *
+     * A structure which spans several regions is listed in all of
+     * them.  Rather than remembering which structures were seen, it
+     * is only visited in the first loaded region of the query where
+     * it appears, which follows from its bounding box.  This needs no
+     * memory beyond one snapshot per region and is safe to nest.  The
+     * time spent in the consumer counts towards the metrics.
+     *
+     * May be called from any thread.
+     */
+    public void forEachWithin(Cuboid cuboid, Consumer<? super Structure> consumer) {
+        forEachWithin(cuboid, null, consumer);
+    }
+
+    /**
+     * Visit each structure of the types overlapping the cuboid
+     * exactly once.  Only the buckets of those types are searched.
+     * @param types the types to match, or null for all
+     */
+    public void forEachWithin(Cuboid cuboid, StructureTypeSet types, Consumer<? super Structure> consumer) {
+        final long start = StructureMetrics.start(Timer.WITHIN);
+        try {
+            forEachWithin0(cuboid, types, consumer);
+        } finally {
+            StructureMetrics.stop(Timer.WITHIN, start);
+        }
+    }
+
+    private void forEachWithin0(Cuboid cuboid, StructureTypeSet types, Consumer<? super Structure> consumer) {
         final int rax = cuboid.ax >> 9;
         final int raz = cuboid.az >> 9;
         final int rbx = cuboid.bx >> 9;
         final int rbz = cuboid.bz >> 9;
+        final int width = rbx - rax + 1;
+        // Take all snapshots first so every structure is judged by
+        // the same view, even while regions change on another thread
+        final Snapshot[] snapshots = new Snapshot[width * (rbz - raz + 1)];
         for (int regionZ = raz; regionZ <= rbz; regionZ += 1) {
             for (int regionX = rax; regionX <= rbx; regionX += 1) {
-                StructureRegion region = getRegion(regionX, regionZ);
-                for (Structure structure : region.structures) {
-                    if (list.contains(structure)) {
-                        continue;
-                    }
-                    if (cuboid.overlaps(structure.boundingBox)) {
-                        list.add(structure);
-                    }
+                snapshots[(regionZ - raz) * width + regionX - rax] = getRegion(regionX, regionZ, types).snapshot;
+            }
+        }
+        for (int i = 0; i < snapshots.length; i += 1) {
+            if (types == null) {
+                visitWithin(snapshots[i].structures(), cuboid, rax, raz, rbx, snapshots, i, consumer);
+            } else {
+                for (int typeOrdinal : types.ordinals()) {
+                    visitWithin(snapshots[i].getStructuresOfType(typeOrdinal), cuboid, rax, raz, rbx, snapshots, i, consumer);
                 }
             }
         }
-        return list;
+    }
+
+    private static void visitWithin(Structure[] structures, Cuboid cuboid, int rax, int raz, int rbx,
+                                    Snapshot[] snapshots, int current, Consumer<? super Structure> consumer) {
+        for (Structure structure : structures) {
+            if (!cuboid.overlaps(structure.boundingBox)) continue;
+            if (!isFirstRegion(structure, rax, raz, rbx, snapshots, current)) continue;
+            consumer.accept(structure);
+        }
+    }
+
+    /**
+     * Check if the snapshot at index current is the first one
+     * containing the structure in the iteration order of
+     * forEachWithin, which covers regions rax, raz through rbx, rbz.
+     * Regions which are still loading only hold structures added
+     * since, so they are checked by id.  So is the empty region,
+     * which may briefly stand in for a region whose first structure
+     * was just inserted.
+     */
+    private static boolean isFirstRegion(Structure structure, int rax, int raz, int rbx, Snapshot[] snapshots, int current) {
+        final Cuboid bb = structure.boundingBox;
+        final int width = rbx - rax + 1;
+        final int ax = Math.max(rax, bb.ax >> 9) - rax;
+        final int az = Math.max(raz, bb.az >> 9) - raz;
+        final int bx = Math.min(rbx, bb.bx >> 9) - rax;
+        final int currentX = current % width;
+        final int currentZ = current / width;
+        if (ax == currentX && az == currentZ) return true;
+        for (int regionZ = az; regionZ <= currentZ; regionZ += 1) {
+            for (int regionX = ax; regionX <= bx; regionX += 1) {
+                final int index = regionZ * width + regionX;
+                if (index == current) return true;
+                final Snapshot snapshot = snapshots[index];
+                if (snapshot.isLoaded() && snapshot != StructureRegion.EMPTY_REGION.snapshot) return false;
+                if (snapshot.containsId(structure.getId())) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the structures whose center is nearest to a point,
+     * nearest first, across the whole world.  This uses the index and
+     * does not load any regions.  Use getOrLoadStructure for the
+     * structures themselves.  Finds nothing until the index is
+     * built.
+     *
+     * May be called from any thread.
+     *
+     * @param count the maximum number of results
+     * @param type the structure type, or null for all types
+     * @param discovered the discovered state to match, or null for
+     *   any
+     */
+    public List<StructureCenter> nearest(int x, int z, int count, NamespacedKey type, Boolean discovered) {
+        final long start = StructureMetrics.start(Timer.NEAREST);
+        try {
+            return index.nearest(x, z, count, type != null ? type.toString() : null, discovered);
+        } finally {
+            StructureMetrics.stop(Timer.NEAREST, start);
+        }
+    }
+
+    /**
+     * Find all structures whose center is within a radius of a point,
+     * nearest first.  See nearest.
+     */
+    public List<StructureCenter> withinRadius(int x, int z, int radius, NamespacedKey type, Boolean discovered) {
+        final long start = StructureMetrics.start(Timer.WITHIN_RADIUS);
+        try {
+            return index.withinRadius(x, z, radius, type != null ? type.toString() : null, discovered);
+        } finally {
+            StructureMetrics.stop(Timer.WITHIN_RADIUS, start);
+        }
+    }
+
+    /**
+     * Check if any structure overlaps the cuboid, across the whole
+     * world.  This uses the columnar index and does not load any
+     * regions.  Finds nothing until the index is built, or if it is
+     * disabled.
+     *
+     * May be called from any thread.
+     *
+     * @param types the types to match, or null for all
+     * @param discovered the discovered state to match, or null for
+     *   any
+     */
+    public boolean anyWithin(Cuboid cuboid, StructureTypeSet types, Boolean discovered) {
+        final long start = StructureMetrics.start(Timer.COLUMN_SCAN);
+        try {
+            return columns.anyWithin(cuboid, types, discovered);
+        } finally {
+            StructureMetrics.stop(Timer.COLUMN_SCAN, start);
+        }
+    }
+
+    /**
+     * Count the structures overlapping the cuboid.  See anyWithin.
+     */
+    public int countWithin(Cuboid cuboid, StructureTypeSet types, Boolean discovered) {
+        final long start = StructureMetrics.start(Timer.COLUMN_SCAN);
+        try {
+            return columns.countWithin(cuboid, types, discovered);
+        } finally {
+            StructureMetrics.stop(Timer.COLUMN_SCAN, start);
+        }
+    }
+
+    /**
+     * Get the bounding boxes of the structures overlapping the
+     * cuboid.  See anyWithin.
+     */
+    public List<StructureBox> boxesWithin(Cuboid cuboid, StructureTypeSet types, Boolean discovered) {
+        final long start = StructureMetrics.start(Timer.COLUMN_SCAN);
+        try {
+            return columns.within(cuboid, types, discovered);
+        } finally {
+            StructureMetrics.stop(Timer.COLUMN_SCAN, start);
+        }
     }
 
     public List<Structure> allLoaded() {
@@ -134,38 +747,350 @@ public final class StructureWorld {
 
     /**
      * Get region from cached if cached, otherwise load it.
-     * This will not increase the referenceCount but will put the
-     * region in the cache and update its lastUse timestamp.
+     * This will not increase any referenceCount but will put the
+     * region in the cache and update its lastUse tick.  Regions
+     * loaded this way are not pinned and will be evicted once idle.
+     * All query methods use this.
+     *
+     * A region which is cached but still loading in the background
+     * is returned as is.  Its structure list stays empty until the
+     * load completes, so callers will find no structures there.
+     * This method never blocks on a pending load.
+     *
+     * On any thread but the owner, the cache is left alone: a region
+     * which is not cached is loaded without being cached, and its
+     * background load is started on the main thread.
+     *
+     * Regions known to contain no structures are neither loaded nor
+     * cached.  They are all answered with one shared empty region.
      */
     protected StructureRegion getRegion(int x, int z) {
-        StructureRegion region = regionCache.get(Vec2i.of(x, z));
-        if (region == null) {
+        return getRegion(x, z, null);
+    }
+
+    /**
+     * Get a region for a query filtered by type.  A region which is
+     * loaded without being cached only holds those types.
+     */
+    private StructureRegion getRegion(int x, int z, StructureTypeSet types) {
+        final boolean owner = Thread.currentThread() == ownerThread;
+        StructureRegion region = regionCache.get(x, z);
+        if (region == null && populatedRegions.isEmpty(x, z)) {
+            StructureMetrics.increment(Counter.REGION_EMPTY);
+            return StructureRegion.EMPTY_REGION;
+        } else if (region == null) {
+            StructureMetrics.increment(Counter.REGION_MISS);
+            if (!owner) return loadDetachedRegion(x, z, types);
             region = loadRegion(x, z);
-            Vec2i vec = Vec2i.of(x, z);
-            regionCache.put(vec, region);
+            cacheRegion(region);
+            syncRegionLoads += 1;
+        } else if (region.isLoaded()) {
+            StructureMetrics.increment(Counter.REGION_HIT);
+        } else {
+            StructureMetrics.increment(Counter.REGION_PENDING);
+            if (owner) retryFailedLoad(region);
         }
-        region.lastUse = System.currentTimeMillis();
-        for (Structure structure : region.structures) {
-            if (structure.referenceCount == 0) {
-                structureCache.put(structure.getId(), structure);
-                new StructureLoadEvent(structure).callEvent();
+        if (owner) touchRegion(region);
+        return region;
+    }
+
+    /**
+     * Load a region for a query off the owner thread.  Cached
+     * structures are reused, the others are fresh copies which are
+     * not cached.  The type filter is applied by the data store.
+     *
+     * Threads which miss the same region with the same filter at the
+     * same time share one load.  The region is then prefetched on the
+     * main thread, once, so the next query will find it.
+     */
+    private StructureRegion loadDetachedRegion(int x, int z, StructureTypeSet types) {
+        final DetachedLoad key = new DetachedLoad(RegionMap.pack(x, z), types);
+        final CompletableFuture<StructureRegion> future = new CompletableFuture<>();
+        final CompletableFuture<StructureRegion> pending = detachedLoads.putIfAbsent(key, future);
+        if (pending != null) return pending.join();
+        try {
+            final StructureRegion result = loadDetachedRegion0(x, z, types);
+            future.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            detachedLoads.remove(key, future);
+        }
+    }
+
+    private StructureRegion loadDetachedRegion0(int x, int z, StructureTypeSet types) {
+        final StructureRegion result = new StructureRegion(x, z);
+        final SQLiteDataStore store = dataStore;
+        if (store != null) {
+            final RegionStructures data = store.loadRegions(List.of(Vec2i.of(x, z)), id -> false,
+                                                            types != null ? types.toNames() : null).get(0);
+            for (Structure structure : data.structures()) {
+                final Structure cached = structureCache.get(structure.getId());
+                result.addStructure(cached != null ? cached : applyPendingWrites(structure));
+            }
+            result.setBiomes(data.biomes());
+            final long packed = RegionMap.pack(x, z);
+            if (!isHeadless() && structurePlugin().isEnabled() && detachedPrefetches.add(packed)) {
+                Bukkit.getScheduler().runTask(structurePlugin(), () -> {
+                        detachedPrefetches.remove(packed);
+                        if (dataStore == store) prefetchRegion(x, z);
+                    });
             }
-            structure.referenceCount += 1;
         }
-        return region;
+        result.setLoaded();
+        return result;
     }
 
+    /**
+     * Key of a load off the owner thread.  The types may be null.
+     */
+    private record DetachedLoad(long region, StructureTypeSet types) { }
+
+    /**
+     * Put a new region in the cache.
+     */
+    private void cacheRegion(StructureRegion region) {
+        regionCache.put(region.x, region.z, region);
+        pinEmptyRegionChunks(region);
+    }
+
+    /**
+     * Let the chunks which were loaded while the region was known to
+     * be empty pin it, as if they were loaded just now.
+     */
+    private void pinEmptyRegionChunks(StructureRegion region) {
+        if (emptyRegionChunks.isEmpty()) return;
+        final int[] count = emptyRegionChunks.remove(RegionMap.pack(region.x, region.z));
+        if (count != null) region.referenceCount += count[0];
+    }
+
+    private static void touchRegion(StructureRegion region) {
+        region.lastUse = currentTick();
+        region.useCount += 1;
+    }
+
+    /**
+     * Check if the cache runs without the plugin, which means there
+     * is no server to schedule tasks or call events.
+     */
+    private static boolean isHeadless() {
+        return structurePlugin() == null;
+    }
+
+    private static int currentTick() {
+        return isHeadless() ? 0 : Bukkit.getCurrentTick();
+    }
+
+    /**
+     * Count one more cached region holding this structure.  The
+     * first holder puts it in the structure cache.
+     */
+    private void holdStructure(Structure structure) {
+        if (structure.referenceCount == 0) {
+            structureCache.put(structure.getId(), structure);
+            StructureMetrics.increment(Counter.STRUCTURE_LOAD_EVENT);
+            if (!isHeadless()) new StructureLoadEvent(structure).callEvent();
+        }
+        structure.referenceCount += 1;
+    }
+
+    /**
+     * Count one less cached region holding this structure.  The last
+     * holder removes it from the structure cache.
+     */
+    private void releaseStructure(Structure structure) {
+        structure.referenceCount -= 1;
+        if (structure.referenceCount <= 0) {
+            StructureMetrics.increment(Counter.STRUCTURE_UNLOAD_EVENT);
+            if (!isHeadless()) new StructureUnloadEvent(structure).callEvent();
+            structureCache.remove(structure.getId());
+        }
+    }
+
+    /**
+     * Load a region synchronously.
+     */
     private StructureRegion loadRegion(int x, int z) {
-        StructureRegion result = new StructureRegion();
+        final long start = StructureMetrics.start(Timer.LOAD_REGION);
+        StructureRegion result = new StructureRegion(x, z);
         if (dataStore != null) {
-            for (int id : dataStore.getStructureRefs(x, z)) {
-                Structure structure = getStructure(id);
-                if (structure != null) {
-                    result.structures.add(structure);
+            RegionStructures data = dataStore.loadRegions(List.of(Vec2i.of(x, z)), structureCache::containsKey).get(0);
+            addRegionStructures(result, data);
+        }
+        result.setLoaded();
+        StructureMetrics.stop(Timer.LOAD_REGION, start);
+        return result;
+    }
+
+    /**
+     * Get a region, loading it in the background if necessary.  The
+     * region is put in the cache right away in the LOADING state.
+     * The data store is queried on a region loader thread, and the
+     * results are applied on the main thread, which is also where the
+     * future completes.  Headless, there is no main thread, so the
+     * region is loaded right away and the future is already complete.
+     *
+     * Must be called on the main thread.
+     */
+    public CompletableFuture<StructureRegion> loadRegionAsync(int x, int z) {
+        final StructureRegion cached = regionCache.get(x, z);
+        if (cached != null) return cached.future;
+        final StructureRegion region = new StructureRegion(x, z);
+        cacheRegion(region);
+        loadAsync(List.of(region));
+        return region.future;
+    }
+
+    /**
+     * Load regions which were just put in the cache in the LOADING
+     * state.  They are split into batches, at most one per loader
+     * thread, and each batch is read with one call to the data store.
+     * The results of a batch are applied on the main thread together.
+     * If the plugin is disabled before that, the futures are
+     * cancelled.
+     */
+    private void loadAsync(List<StructureRegion> regions) {
+        final SQLiteDataStore store = dataStore;
+        if (store == null || loaders == null) {
+            for (StructureRegion region : regions) {
+                region.setLoaded();
+                touchRegion(region);
+            }
+            return;
+        }
+        if (isHeadless()) {
+            // Nowhere to hand the results to, so apply them here
+            final long start = StructureMetrics.start(Timer.LOAD_REGION_ASYNC);
+            final List<RegionStructures> result = loadBatch(store, regions);
+            for (int i = 0; i < regions.size(); i += 1) {
+                if (result != null) {
+                    onRegionLoaded(regions.get(i), result.get(i));
+                } else {
+                    onRegionLoadFailed(regions.get(i));
                 }
             }
+            StructureMetrics.stop(Timer.LOAD_REGION_ASYNC, start);
+            return;
         }
-        return result;
+        final int batchSize = Math.max(1, Math.min(SQLiteDataStore.MAX_REGION_BATCH,
+                                                   (regions.size() + readerCount - 1) / readerCount));
+        for (int offset = 0; offset < regions.size(); offset += batchSize) {
+            final List<StructureRegion> batch = List.copyOf(regions.subList(offset, Math.min(regions.size(), offset + batchSize)));
+            final long start = StructureMetrics.start(Timer.LOAD_REGION_ASYNC);
+            loaders.execute(() -> {
+                    final List<RegionStructures> result = loadBatch(store, batch);
+                    if (!structurePlugin().isEnabled()) {
+                        for (StructureRegion region : batch) region.future.cancel(false);
+                        return;
+                    }
+                    Bukkit.getScheduler().runTask(structurePlugin(), () -> {
+                            for (int i = 0; i < batch.size(); i += 1) {
+                                if (result != null) {
+                                    onRegionLoaded(batch.get(i), result.get(i));
+                                } else {
+                                    onRegionLoadFailed(batch.get(i));
+                                }
+                            }
+                            StructureMetrics.stop(Timer.LOAD_REGION_ASYNC, start);
+                        });
+                });
+        }
+    }
+
+    /**
+     * Read a batch of regions from the data store.
+     * @return the regions, or null if there was an error, which is
+     *   logged
+     */
+    private List<RegionStructures> loadBatch(SQLiteDataStore store, List<StructureRegion> batch) {
+        final List<Vec2i> coords = new ArrayList<>(batch.size());
+        for (StructureRegion region : batch) coords.add(Vec2i.of(region.x, region.z));
+        try {
+            return store.loadRegions(coords, structureCache::containsKey);
+        } catch (RuntimeException re) {
+            logger().log(Level.SEVERE, "[" + worldName + "] Loading regions " + coords, re);
+            return null;
+        }
+    }
+
+    /**
+     * A region could not be read, maybe because the database was
+     * busy.  It stays cached and loading, so its pins are kept and it
+     * is never taken for empty.  The next access after a backoff
+     * starts another load, see retryFailedLoad.
+     */
+    private void onRegionLoadFailed(StructureRegion region) {
+        if (regionCache.get(region.x, region.z) != region) {
+            region.future.cancel(false);
+            return;
+        }
+        region.loadFailures += 1;
+        region.retryTick = isHeadless()
+            ? 0L
+            : currentTick() + Math.min(MAX_RETRY_TICKS, 20L << Math.min(6, region.loadFailures));
+    }
+
+    /**
+     * Load a region again whose last load failed, unless it is still
+     * backing off or another load is under way.
+     */
+    private void retryFailedLoad(StructureRegion region) {
+        if (region.loadFailures == 0 || region.retryTick > currentTick()) return;
+        region.retryTick = Long.MAX_VALUE;
+        loadAsync(List.of(region));
+    }
+
+    /**
+     * Apply the results of an asynchronous region load.
+     */
+    private void onRegionLoaded(StructureRegion region, RegionStructures data) {
+        if (regionCache.get(region.x, region.z) != region) {
+            // The world was disabled while we were loading.
+            region.future.cancel(false);
+            return;
+        }
+        for (int id : data.cachedIds()) {
+            if (structureCache.containsKey(id)) continue;
+            // Evicted after the loader skipped it.  Read the region
+            // again rather than query the data store on this thread.
+            loadAsync(List.of(region));
+            return;
+        }
+        addRegionStructures(region, data);
+        region.loadFailures = 0;
+        region.setLoaded();
+        touchRegion(region);
+    }
+
+    /**
+     * Put the loaded structures into a region.  Structures which were
+     * cached in the meantime take precedence over the freshly loaded
+     * copies.  Ids which were reported as cached are resolved via the
+     * cache only, so the data store is never queried here.  Callers
+     * make sure they are still cached.
+     * The region holds each of its structures exactly once.
+     */
+    private void addRegionStructures(StructureRegion region, RegionStructures data) {
+        // Structures added via addStructure while loading
+        final Set<Integer> ids = idsOf(region);
+        for (Structure structure : data.structures()) {
+            if (!ids.add(structure.getId())) continue;
+            final Structure cached = structureCache.get(structure.getId());
+            final Structure added = cached != null ? cached : applyPendingWrites(structure);
+            region.addStructure(added);
+            holdStructure(added);
+        }
+        for (int id : data.cachedIds()) {
+            if (!ids.add(id)) continue;
+            final Structure structure = structureCache.get(id);
+            if (structure != null) {
+                region.addStructure(structure);
+                holdStructure(structure);
+            }
+        }
+        region.setBiomes(data.biomes());
     }
 
     private Structure getStructure(int id) {
@@ -177,92 +1102,451 @@ public final class StructureWorld {
 
     private Structure loadStructure(int id) {
         return dataStore != null
-            ? dataStore.getStructure(id)
+            ? applyPendingWrites(dataStore.getStructure(id))
             : null;
     }
 
     /**
-     * Ensure the region containing this chunk is cached and bump its
-     * reference count.
-     * Do the same for structures contained in the region, provided
-     * the region is newly cached.
+     * Ensure the region containing this chunk is cached and pin it by
+     * bumping its reference count.  Each loaded chunk pins its region
+     * exactly once, and only chunk unloads release the pin.
+     *
+     * Regions which are not cached yet will be loaded in the
+     * background, so this never queries the data store on the main
+     * thread.  Regions known to be empty are not cached at all; the
+     * chunk is counted, and pins the region once it is cached.
      */
     protected void onChunkLoad(int chunkX, int chunkZ) {
         final int regionX = chunkX >> 5;
         final int regionZ = chunkZ >> 5;
-        StructureRegion region = getRegion(regionX, regionZ);
+        StructureRegion region = regionCache.get(regionX, regionZ);
+        if (region == null && populatedRegions.isEmpty(regionX, regionZ)) {
+            chunkRegionEmpty += 1;
+            emptyRegionChunks.computeIfAbsent(RegionMap.pack(regionX, regionZ), k -> new int[1])[0] += 1;
+            return;
+        } else if (region == null) {
+            chunkRegionMisses += 1;
+            loadRegionAsync(regionX, regionZ);
+            region = regionCache.get(regionX, regionZ);
+        } else if (region.isLoaded()) {
+            chunkRegionHits += 1;
+            touchRegion(region);
+        } else {
+            chunkRegionPending += 1;
+            retryFailedLoad(region);
+        }
         region.referenceCount += 1;
     }
 
+    /**
+     * Start loading a region in the background unless it is cached
+     * already or known to be empty.
+     * @return the future of the load, or null if the region was
+     *   cached or empty
+     */
+    public CompletableFuture<StructureRegion> prefetchRegion(int x, int z) {
+        if (dataStore == null || regionCache.containsKey(x, z) || populatedRegions.isEmpty(x, z)) return null;
+        prefetchedRegions += 1;
+        return loadRegionAsync(x, z);
+    }
+
+    /**
+     * The share of chunk loads which found their region loaded or
+     * known to be empty.
+     * @return the hit rate between 0 and 1, or 1 if there were none
+     */
+    public double getChunkRegionHitRate() {
+        final long hits = chunkRegionHits + chunkRegionEmpty;
+        final long total = hits + chunkRegionPending + chunkRegionMisses;
+        return total > 0 ? (double) hits / (double) total : 1.0;
+    }
+
     protected void onChunkUnload(int chunkX, int chunkZ) {
         final int regionX = chunkX >> 5;
         final int regionZ = chunkZ >> 5;
-        Vec2i vec = Vec2i.of(regionX, regionZ);
-        StructureRegion region = regionCache.get(vec);
+        StructureRegion region = regionCache.get(regionX, regionZ);
         if (region == null) {
-            throw new IllegalStateException("Unloaded region not cached: " + vec);
+            final long key = RegionMap.pack(regionX, regionZ);
+            final int[] count = emptyRegionChunks.get(key);
+            if (count == null) {
+                throw new IllegalStateException("Unloaded region not cached: " + regionX + "," + regionZ);
+            }
+            count[0] -= 1;
+            if (count[0] <= 0) emptyRegionChunks.remove(key);
+            return;
         }
         region.referenceCount -= 1;
-        tryToEvict(vec, region);
+        tryToEvict(region);
+    }
+
+    /**
+     * Check if a region may be evicted at all.  Regions pinned by
+     * loaded chunks or the config, and regions still loading, may
+     * not.
+     */
+    private boolean isEvictable(StructureRegion region) {
+        return region.referenceCount <= 0
+            && region.isLoaded()
+            && !evictionSettings.isPinned(region.x, region.z);
     }
 
     /**
-     * Unload one chunks if it does not have references and has not
-     * been in use (lastUse) for at least 10 seconds.
+     * Unload one region if it may be evicted and has not been in use
+     * (lastUse) for at least the idle time.
      */
-    private void tryToEvict(Vec2i vec, StructureRegion region) {
-        if (region.referenceCount > 0) return;
-        if (region.lastUse > System.currentTimeMillis() - 10_000L) return;
-        regionCache.remove(vec);
+    private void tryToEvict(StructureRegion region) {
+        if (!isEvictable(region)) return;
+        if (region.lastUse > currentTick() - evictionSettings.idleTicks()) return;
+        evict(region, EvictionReason.IDLE);
+    }
+
+    private void evict(StructureRegion region, EvictionReason reason) {
+        regionCache.remove(region.x, region.z);
         for (Structure structure : region.structures) {
-            structure.referenceCount -= 1;
-            if (structure.referenceCount <= 0) {
-                new StructureUnloadEvent(structure).callEvent();
-                structureCache.remove(structure.getId());
+            releaseStructure(structure);
+        }
+        evictions[reason.ordinal()] += 1;
+        StructureMetrics.increment(reason.getCounter());
+    }
+
+    /**
+     * Try to unload all regions via StructureWorld#tryToEvict, then
+     * enforce the budget.
+     */
+    protected void prune() {
+        for (StructureRegion region : regionCache.values()) {
+            evictionSettings.policy().onPrune(region);
+            tryToEvict(region);
+        }
+        enforceBudget();
+        pruneEmptyRegionBiomes();
+    }
+
+    /**
+     * Drop the biomes of empty regions which were not looked up for
+     * the idle time.
+     */
+    private void pruneEmptyRegionBiomes() {
+        if (emptyRegionBiomes.isEmpty()) return;
+        final long idleSince = currentTick() - evictionSettings.idleTicks();
+        emptyRegionBiomes.removeIf(biomes -> biomes.lastUse <= idleSince);
+    }
+
+    /**
+     * Evict regions in the order of the eviction policy until the
+     * world is within its region and memory budget.  Regions which
+     * may not be evicted still count, so the budget is not a hard
+     * limit.
+     */
+    private void enforceBudget() {
+        final int maxRegions = evictionSettings.maxRegions();
+        final long maxBytes = evictionSettings.maxBytes();
+        if (maxRegions <= 0 && maxBytes <= 0L) return;
+        int count = regionCache.size();
+        long size = 0L;
+        final List<StructureRegion> candidates = new ArrayList<>();
+        for (StructureRegion region : regionCache.values()) {
+            size += region.estimatedSize;
+            if (isEvictable(region)) candidates.add(region);
+        }
+        if ((maxRegions <= 0 || count <= maxRegions) && (maxBytes <= 0L || size <= maxBytes)) return;
+        final EvictionPolicy policy = evictionSettings.policy();
+        final long now = currentTick();
+        candidates.sort(Comparator.comparingLong(region -> policy.score(region, now)));
+        for (StructureRegion region : candidates) {
+            if (maxRegions > 0 && count > maxRegions) {
+                evict(region, EvictionReason.MAX_REGIONS);
+            } else if (maxBytes > 0L && size > maxBytes) {
+                evict(region, EvictionReason.MAX_MEMORY);
+            } else {
+                break;
             }
+            count -= 1;
+            size -= region.estimatedSize;
         }
     }
 
+    public long getEvictionCount(EvictionReason reason) {
+        return evictions[reason.ordinal()];
+    }
+
+    /**
+     * Replace the eviction settings, for example with a custom
+     * policy.  Takes effect on the next prune.
+     */
+    public void setEvictionSettings(EvictionSettings settings) {
+        this.evictionSettings = requireNonNull(settings);
+    }
+
     /**
-     * Try to unload all regions via StructureWorld#tryToEvict.
+     * Sum up the estimated heap size of all cached regions.
      */
-    private void prune() {
-        for (Vec2i vec : List.copyOf(regionCache.keySet())) {
-            StructureRegion region = regionCache.get(vec);
-            tryToEvict(vec, region);
+    public long getEstimatedSize() {
+        long result = 0L;
+        for (StructureRegion region : regionCache.values()) {
+            result += region.estimatedSize;
         }
+        return result;
     }
 
     protected void addStructure(Structure structure) {
-        List<Vec2i> regions = getOrCreateDataStore().addStructure(structure);
-        for (Vec2i region : regions) {
-            StructureRegion structureRegion = regionCache.get(region);
-            if (structureRegion != null) {
-                structureRegion.structures.add(structure);
-                structure.referenceCount += 1;
+        getOrCreateDataStore().addStructure(structure);
+        onStructuresAdded(List.of(structure));
+    }
+
+    /**
+     * Insert many structures in one transaction on the main thread.
+     */
+    protected void addStructures(Collection<Structure> structures) {
+        getOrCreateDataStore().addStructures(structures);
+        onStructuresAdded(structures);
+    }
+
+    /**
+     * Insert many structures in one transaction on the writer
+     * thread.  The caches are updated on the main thread, where the
+     * future completes.  Headless, everything happens right away on
+     * the calling thread.  If the plugin is disabled before the
+     * caches are updated, the future completes without it.
+     *
+     * Must be called on the main thread.
+     */
+    protected CompletableFuture<Void> addStructuresAsync(Collection<Structure> structures) {
+        if (executor == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("World not enabled: " + worldName));
+        }
+        if (isHeadless()) {
+            try {
+                addStructures(structures);
+            } catch (RuntimeException re) {
+                return CompletableFuture.failedFuture(re);
             }
+            return CompletableFuture.completedFuture(null);
         }
-        if (structure.referenceCount > 0) {
-            structureCache.put(structure.getId(), structure);
+        final SQLiteDataStore store = getOrCreateDataStore();
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final List<Structure> list = List.copyOf(structures);
+        executor.execute(() -> {
+                try {
+                    store.addStructures(list);
+                } catch (RuntimeException re) {
+                    result.completeExceptionally(re);
+                    return;
+                }
+                if (!structurePlugin().isEnabled()) {
+                    result.complete(null);
+                    return;
+                }
+                Bukkit.getScheduler().runTask(structurePlugin(), () -> {
+                        if (dataStore == store) onStructuresAdded(list);
+                        result.complete(null);
+                    });
+            });
+        return result;
+    }
+
+    /**
+     * Add freshly inserted structures to the index and to the regions
+     * which are currently cached.
+     *
+     * A region may have been read from the data store between the
+     * insert and this call, in which case it holds a copy already.
+     * Such regions are skipped, and the cached copy is the one added
+     * to the other regions, so each id has one instance.
+     *
+     * Regions which were known to be empty, usually freshly generated
+     * terrain, are cached right away with the new structures, which
+     * are all they hold.  Their loaded chunks pin them.  A background
+     * load then fills in the biomes.
+     */
+    private void onStructuresAdded(Collection<Structure> structures) {
+        // The ids held by each changed region
+        final Map<StructureRegion, Set<Integer>> changed = new HashMap<>();
+        final List<StructureRegion> created = new ArrayList<>();
+        for (Structure structure : structures) {
+            index.add(structure);
+            if (columnsEnabled) columns.add(structure);
+            final Structure cached = structureCache.get(structure.getId());
+            final Structure added = cached != null ? cached : structure;
+            for (Vec2i region : SQLiteDataStore.getRegions(structure.getBoundingBox())) {
+                StructureRegion structureRegion = regionCache.get(region.x, region.z);
+                if (structureRegion == null && populatedRegions.isEmpty(region.x, region.z)) {
+                    structureRegion = new StructureRegion(region.x, region.z);
+                    emptyRegionBiomes.remove(region.x, region.z);
+                    cacheRegion(structureRegion);
+                    created.add(structureRegion);
+                }
+                if (structureRegion == null) continue;
+                final Set<Integer> ids = changed.computeIfAbsent(structureRegion, StructureWorld::idsOf);
+                if (!ids.add(added.getId())) continue;
+                structureRegion.addStructure(added);
+                holdStructure(added);
+            }
+            // Only now, so the regions it makes populated were
+            // created above
+            populatedRegions.add(structure);
         }
+        for (StructureRegion region : changed.keySet()) {
+            region.publish();
+        }
+        if (!created.isEmpty()) loadAsync(created);
+    }
+
+    private static Set<Integer> idsOf(StructureRegion region) {
+        final Set<Integer> result = new HashSet<>();
+        for (Structure structure : region.structures) result.add(structure.getId());
+        return result;
     }
 
+    /**
+     * Queue the new JSON data to be saved in the background.
+     */
     protected void updateStructure(Structure structure) {
-        getOrCreateDataStore().updateStructureJson(structure);
+        getOrCreateDataStore();
+        writeQueue.queueJson(structure.getId(), structure.getJson());
     }
 
+    /**
+     * Queue the new discovered value to be saved in the background.
+     */
     protected void updateDiscovered(Structure structure) {
-        getOrCreateDataStore().updateDiscovered(structure);
+        getOrCreateDataStore();
+        writeQueue.queueDiscovered(structure.getId(), structure.getKey().toString(), structure.isDiscovered());
+        index.setDiscovered(structure);
+        if (columnsEnabled) columns.setDiscovered(structure);
+    }
+
+    /**
+     * Save all queued writes now.  This blocks until done.
+     */
+    public void flushWrites() {
+        if (writeQueue != null) writeQueue.flush();
+    }
+
+    /**
+     * Apply writes which are still queued to a structure which was
+     * just loaded from the data store, so it does not show stale
+     * values.
+     */
+    private Structure applyPendingWrites(Structure structure) {
+        if (structure == null || writeQueue == null) return structure;
+        final PendingWrite write = writeQueue.getPending(structure.getId());
+        if (write == null) return structure;
+        if (write.json() != null) structure.json = write.json();
+        if (write.discovered() != null) structure.discovered = write.discovered();
+        return structure;
+    }
+
+    /**
+     * Get the biome of the chunk containing the given block from the
+     * region cache.  Regions which are known to hold no structures
+     * are not cached, so their biomes are kept on their own, loaded
+     * in the background on first use.  Only regions which are still
+     * loading are looked up in the data store.
+     */
+    protected Biome biomeAt(int x, int z) {
+        final SQLiteDataStore store = dataStore;
+        if (store == null) return null;
+        final int regionX = x >> 9;
+        final int regionZ = z >> 9;
+        final StructureRegion region = getRegion(regionX, regionZ);
+        if (region == StructureRegion.EMPTY_REGION) {
+            final RegionBiomes biomes = emptyRegionBiomes.get(regionX, regionZ);
+            if (biomes != null) {
+                if (Thread.currentThread() == ownerThread) biomes.lastUse = currentTick();
+                return biomes.getBiomeAt(x, z);
+            }
+            loadEmptyRegionBiomes(store, regionX, regionZ);
+            final RegionBiomes loaded = emptyRegionBiomes.get(regionX, regionZ);
+            if (loaded != null) return loaded.getBiomeAt(x, z);
+        } else if (region.isLoaded()) {
+            return region.getBiomeAt(x, z);
+        }
+        return store.getChunkBiome(x >> 4, z >> 4);
     }
 
-    protected Biome biomeAt(Vec3i vec) {
-        if (dataStore == null) return null;
-        return dataStore.getChunkBiome(vec.x >> 4, vec.z >> 4);
+    /**
+     * Start loading the biomes of a region which holds no
+     * structures, unless that is under way.  Headless, they are
+     * loaded right away.  Off the owner thread, the load is started
+     * on the main thread.
+     */
+    private void loadEmptyRegionBiomes(SQLiteDataStore store, int regionX, int regionZ) {
+        final long key = RegionMap.pack(regionX, regionZ);
+        if (!emptyRegionBiomeLoads.add(key)) return;
+        if (isHeadless()) {
+            try {
+                putEmptyRegionBiomes(store, regionX, regionZ, store.loadRegions(List.of(Vec2i.of(regionX, regionZ)), id -> false).get(0));
+            } finally {
+                emptyRegionBiomeLoads.remove(key);
+            }
+            return;
+        }
+        if (Thread.currentThread() != ownerThread) {
+            Bukkit.getScheduler().runTask(structurePlugin(), () -> {
+                    emptyRegionBiomeLoads.remove(key);
+                    if (dataStore == store) loadEmptyRegionBiomes(store, regionX, regionZ);
+                });
+            return;
+        }
+        final ExecutorService pool = loaders;
+        if (pool == null) {
+            emptyRegionBiomeLoads.remove(key);
+            return;
+        }
+        pool.execute(() -> {
+                RegionStructures data;
+                try {
+                    data = store.loadRegions(List.of(Vec2i.of(regionX, regionZ)), id -> false).get(0);
+                } catch (RuntimeException re) {
+                    logger().log(Level.SEVERE, "[" + worldName + "] Loading biomes of region " + regionX + "," + regionZ, re);
+                    data = null;
+                }
+                if (!structurePlugin().isEnabled()) return;
+                final RegionStructures result = data;
+                Bukkit.getScheduler().runTask(structurePlugin(), () -> {
+                        emptyRegionBiomeLoads.remove(key);
+                        if (result != null) putEmptyRegionBiomes(store, regionX, regionZ, result);
+                    });
+            });
+    }
+
+    /**
+     * Keep the biomes of a region, unless it gained structures or the
+     * data store changed meanwhile.
+     */
+    private void putEmptyRegionBiomes(SQLiteDataStore store, int regionX, int regionZ, RegionStructures data) {
+        if (dataStore != store || !populatedRegions.isEmpty(regionX, regionZ)) return;
+        final RegionBiomes biomes = RegionBiomes.of(data.biomes());
+        biomes.lastUse = currentTick();
+        emptyRegionBiomes.put(regionX, regionZ, biomes);
     }
 
+    /**
+     * May be called from any thread.
+     */
+    protected void forEachBiome(BiomeVisitor visitor) {
+        final SQLiteDataStore store = dataStore;
+        if (store != null) store.forEachBiome(visitor);
+    }
+
+    /**
+     * May be called from any thread.
+     */
+    protected BiomeMap biomeMap() {
+        final SQLiteDataStore store = dataStore;
+        return store != null
+            ? store.getBiomeMap()
+            : new BiomeMap();
+    }
+
+    /**
+     * May be called from any thread.
+     */
     protected Map<Vec2i, Biome> allBiomes() {
-        return dataStore != null
-            ? dataStore.getAllBiomes()
+        final SQLiteDataStore store = dataStore;
+        return store != null
+            ? store.getAllBiomes()
             : Map.of();
     }
 }
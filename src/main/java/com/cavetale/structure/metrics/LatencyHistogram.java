@@ -0,0 +1,75 @@
+package com.cavetale.structure.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free latency histogram with one bucket per power of two
+ * nanoseconds.  Percentiles are reported as the upper bound of their
+ * bucket, which is accurate within a factor of two.
+ */
+public final class LatencyHistogram {
+    private static final int BUCKETS = 64;
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i += 1) buckets[i] = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0L) nanos = 0L;
+        // Bucket i holds [2^i, 2^(i+1)), with 0 in bucket 0
+        buckets[Math.max(0, 63 - Long.numberOfLeadingZeros(nanos))].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMeanNanos() {
+        final long n = count.sum();
+        return n > 0L ? (double) totalNanos.sum() / (double) n : 0.0;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Estimate a percentile.
+     * @param fraction between 0 and 1, e.g. 0.99
+     * @return the upper bound of the bucket, in nanoseconds
+     */
+    public long getPercentileNanos(double fraction) {
+        final long[] counts = new long[BUCKETS];
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i += 1) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0L) return 0L;
+        final long rank = (long) Math.ceil(fraction * total);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i += 1) {
+            seen += counts[i];
+            if (seen >= rank) return i >= 62 ? Long.MAX_VALUE : (2L << i) - 1L;
+        }
+        return maxNanos.get();
+    }
+
+    public void reset() {
+        for (LongAdder it : buckets) it.reset();
+        count.reset();
+        totalNanos.reset();
+        maxNanos.set(0L);
+    }
+}
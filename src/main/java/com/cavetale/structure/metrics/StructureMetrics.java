@@ -0,0 +1,179 @@
+package com.cavetale.structure.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide counters and latency histograms of the structure
+ * cache and data store.  Safe to use from any thread.
+ *
+ * The mode decides the overhead:
+ * - OFF records nothing.
+ * - SAMPLED counts every call but only times one in sampleRate, which
+ *   is cheap enough to leave on.
+ * - FULL times every call.
+ *
+ * Usage:
+ * {@code final long start = StructureMetrics.start(Timer.AT);}
+ * followed by {@code StructureMetrics.stop(Timer.AT, start);}
+ */
+public final class StructureMetrics {
+    private static volatile Mode mode = Mode.SAMPLED;
+    private static volatile int sampleMask = 63;
+    private static final LongAdder[] COUNTERS = new LongAdder[Counter.values().length];
+    private static final LongAdder[] CALLS = new LongAdder[Timer.values().length];
+    private static final LatencyHistogram[] HISTOGRAMS = new LatencyHistogram[Timer.values().length];
+    /** Decides which calls are sampled.  Races are harmless. */
+    private static final int[] SAMPLE_TICKS = new int[Timer.values().length];
+
+    static {
+        for (int i = 0; i < COUNTERS.length; i += 1) COUNTERS[i] = new LongAdder();
+        for (int i = 0; i < CALLS.length; i += 1) {
+            CALLS[i] = new LongAdder();
+            HISTOGRAMS[i] = new LatencyHistogram();
+        }
+    }
+
+    private StructureMetrics() { }
+
+    public enum Mode {
+        OFF,
+        SAMPLED,
+        FULL;
+    }
+
+    public enum Counter {
+        REGION_HIT,
+        REGION_PENDING,
+        REGION_MISS,
+        REGION_EMPTY,
+        STRUCTURE_LOAD_EVENT,
+        STRUCTURE_UNLOAD_EVENT,
+        EVICTION_IDLE,
+        EVICTION_MAX_REGIONS,
+        EVICTION_MAX_MEMORY;
+
+        public final String key = name().toLowerCase(Locale.ROOT);
+    }
+
+    public enum Timer {
+        // Cache queries
+        AT,
+        ALL_AT,
+        WITHIN,
+        NEAREST,
+        WITHIN_RADIUS,
+        COLUMN_SCAN,
+        LOAD_REGION,
+        LOAD_REGION_ASYNC,
+        // Snapshot
+        SNAPSHOT_LOAD_REGIONS,
+        SNAPSHOT_FIND_STRUCTURE,
+        SNAPSHOT_EXPORT,
+        // Data store statements
+        SQL_FIND_STRUCTURE_REFS,
+        SQL_FIND_STRUCTURE,
+        SQL_FIND_STRUCTURES,
+        SQL_LOAD_REGIONS,
+        SQL_FIND_BIOME,
+        SQL_ALL_BIOMES,
+        SQL_STRUCTURE_TYPES,
+        SQL_DISCOVERED_STATS,
+        SQL_POPULATED_REGIONS,
+        SQL_STRUCTURE_CENTERS,
+        SQL_STRUCTURE_BOXES,
+        SQL_FIND_MISSING_CHILDREN,
+        SQL_INSERT_STRUCTURES,
+        SQL_UPDATE_JSON,
+        SQL_UPDATE_DISCOVERED,
+        SQL_UPDATE_STRUCTURES,
+        SQL_SET_BIOME,
+        SQL_BACKFILL_CHILDREN,
+        SQL_BUILD_STATS,
+        SQL_QUERY,
+        SQL_UPDATE;
+
+        public final String key = name().toLowerCase(Locale.ROOT);
+    }
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Set the mode and the sample rate, which is rounded up to a power
+     * of two.
+     */
+    public static void configure(Mode newMode, int sampleRate) {
+        int rate = Integer.highestOneBit(Math.max(1, sampleRate));
+        if (rate < sampleRate) rate <<= 1;
+        sampleMask = rate - 1;
+        mode = newMode;
+    }
+
+    public static void increment(Counter counter) {
+        if (mode == Mode.OFF) return;
+        COUNTERS[counter.ordinal()].increment();
+    }
+
+    public static void add(Counter counter, long amount) {
+        if (mode == Mode.OFF) return;
+        COUNTERS[counter.ordinal()].add(amount);
+    }
+
+    /**
+     * Count a call and decide if it is timed.
+     * @return the start time to pass to stop, or 0 if this call is
+     *   not timed
+     */
+    public static long start(Timer timer) {
+        final Mode currentMode = mode;
+        if (currentMode == Mode.OFF) return 0L;
+        final int index = timer.ordinal();
+        CALLS[index].increment();
+        if (currentMode == Mode.SAMPLED && (++SAMPLE_TICKS[index] & sampleMask) != 0) return 0L;
+        return System.nanoTime();
+    }
+
+    public static void stop(Timer timer, long start) {
+        if (start == 0L) return;
+        HISTOGRAMS[timer.ordinal()].record(System.nanoTime() - start);
+    }
+
+    public static long getCount(Counter counter) {
+        return COUNTERS[counter.ordinal()].sum();
+    }
+
+    /**
+     * Get the number of calls, timed or not.
+     */
+    public static long getCalls(Timer timer) {
+        return CALLS[timer.ordinal()].sum();
+    }
+
+    /**
+     * Get the histogram of the timed calls.
+     */
+    public static LatencyHistogram getHistogram(Timer timer) {
+        return HISTOGRAMS[timer.ordinal()];
+    }
+
+    public static Map<String, Long> getCounters() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for (Counter counter : Counter.values()) {
+            result.put(counter.key, getCount(counter));
+        }
+        for (Timer timer : Timer.values()) {
+            result.put(timer.key + "_calls", getCalls(timer));
+        }
+        return result;
+    }
+
+    public static void reset() {
+        for (LongAdder it : COUNTERS) it.reset();
+        for (LongAdder it : CALLS) it.reset();
+        for (LatencyHistogram it : HISTOGRAMS) it.reset();
+    }
+}
@@ -0,0 +1,88 @@
+package com.cavetale.structure.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import static com.cavetale.structure.StructurePlugin.logger;
+
+/**
+ * Publishes StructureMetrics via JMX.
+ */
+public final class StructureMetricsBean implements StructureMetricsMXBean {
+    public static final String OBJECT_NAME = "com.cavetale.structure:type=Metrics";
+    private ObjectName objectName;
+
+    public void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+        } catch (JMException jme) {
+            logger().log(Level.SEVERE, "Registering " + OBJECT_NAME, jme);
+            objectName = null;
+        }
+    }
+
+    public void unregister() {
+        if (objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException jme) {
+            logger().log(Level.SEVERE, "Unregistering " + OBJECT_NAME, jme);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public String getMode() {
+        return StructureMetrics.getMode().name();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        return StructureMetrics.getCounters();
+    }
+
+    @Override
+    public Map<String, Double> getMeanMicros() {
+        final Map<String, Double> result = new LinkedHashMap<>();
+        for (StructureMetrics.Timer timer : StructureMetrics.Timer.values()) {
+            result.put(timer.key, StructureMetrics.getHistogram(timer).getMeanNanos() / 1000.0);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getP50Micros() {
+        return micros(h -> h.getPercentileNanos(0.5));
+    }
+
+    @Override
+    public Map<String, Long> getP99Micros() {
+        return micros(h -> h.getPercentileNanos(0.99));
+    }
+
+    @Override
+    public Map<String, Long> getMaxMicros() {
+        return micros(LatencyHistogram::getMaxNanos);
+    }
+
+    @Override
+    public void reset() {
+        StructureMetrics.reset();
+    }
+
+    private static Map<String, Long> micros(ToLongFunction<LatencyHistogram> function) {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for (StructureMetrics.Timer timer : StructureMetrics.Timer.values()) {
+            result.put(timer.key, function.applyAsLong(StructureMetrics.getHistogram(timer)) / 1000L);
+        }
+        return result;
+    }
+}
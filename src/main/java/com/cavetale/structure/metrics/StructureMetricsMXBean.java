@@ -0,0 +1,23 @@
+package com.cavetale.structure.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of StructureMetrics.  Latencies are in microseconds and
+ * keyed by timer name.
+ */
+public interface StructureMetricsMXBean {
+    String getMode();
+
+    Map<String, Long> getCounters();
+
+    Map<String, Double> getMeanMicros();
+
+    Map<String, Long> getP50Micros();
+
+    Map<String, Long> getP99Micros();
+
+    Map<String, Long> getMaxMicros();
+
+    void reset();
+}
@@ -2,9 +2,24 @@ package com.cavetale.structure.sqlite;
 
 import com.cavetale.core.struct.Cuboid;
 import com.cavetale.core.struct.Vec2i;
+import com.cavetale.structure.cache.BiomeMap;
+import com.cavetale.structure.cache.BiomeVisitor;
+import com.cavetale.structure.cache.RegionMap;
+import com.cavetale.structure.cache.RegionVisitor;
 import com.cavetale.structure.cache.Structure;
+import com.cavetale.structure.cache.StructureBoxVisitor;
+import com.cavetale.structure.cache.StructureCenterVisitor;
+import com.cavetale.structure.cache.StructureChildren;
+import com.cavetale.structure.cache.StructurePart;
+import com.cavetale.structure.metrics.StructureMetrics;
+import com.cavetale.structure.metrics.StructureMetrics.Timer;
+import com.cavetale.structure.sqlite.StructureStats.TypeStats;
+import com.cavetale.structure.sqlite.StructureWriteQueue.PendingWrite;
 import io.papermc.paper.registry.RegistryKey;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -13,12 +28,22 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+import java.util.function.ObjIntConsumer;
 import java.util.logging.Level;
 import lombok.RequiredArgsConstructor;
 import org.bukkit.NamespacedKey;
@@ -28,22 +53,208 @@ import static com.cavetale.structure.StructurePlugin.logger;
 import static com.cavetale.structure.StructurePlugin.warn;
 import static io.papermc.paper.registry.RegistryAccess.registryAccess;
 
+/**
+ * Access to the structures.db file of one world.
+ *
+ * The database runs in WAL mode.  There is one writer connection,
+ * which is used by the synchronized write methods, and a small pool
+ * of read-only reader connections, each with its own set of
+ * statements.  Reads may thus run on several threads at once without
+ * blocking each other or the writer.  The thread which enables the
+ * data store, usually the main thread, has one more reader of its
+ * own, so it never waits for loads or scans holding the pool.
+ *
+ * With change tracking enabled, triggers count every change in the
+ * meta table and remember the last change of each region in the
+ * region_changes table.  This lets a StructureSnapshot serve the
+ * regions which did not change since it was exported.
+ */
 @RequiredArgsConstructor
 public final class SQLiteDataStore {
     private final String worldName;
     private final File databaseFile;
+    private final int readerCount;
     private Connection connection;
-    private PreparedStatement stmtFindStructureRef;
-    private PreparedStatement stmtFindStructure;
     private PreparedStatement stmtInsertStructure;
+    private PreparedStatement stmtInsertStructRef;
     private PreparedStatement stmtUpdateStructure;
     private PreparedStatement stmtUpdateDiscovered;
     private PreparedStatement stmtInsertBiome;
-    private PreparedStatement stmtFindBiome;
-    private PreparedStatement stmtGetAllBiomes;
-    private PreparedStatement stmtGetAllStructureTypes;
-    private PreparedStatement stmtDiscoveredStats;
-    private Statement stmt;
+    private PreparedStatement stmtUpdateChildren;
+    private BlockingQueue<Reader> readers;
+    /** The reader reserved for the owner thread. */
+    private BlockingQueue<Reader> ownerReaders;
+    private volatile Thread ownerThread;
+    private final StructureStats stats = new StructureStats();
+    private PreparedStatement stmtRegionChanges;
+    private volatile SnapshotState snapshotState;
+    /** The highest change seen by refreshChanges.  Guarded by this. */
+    private long seenVersion;
+    /**
+     * The biomes of one column of chunks in a region.  A range on
+     * chunk_x could only use the first column of the unique index, so
+     * regions are read one chunk_x at a time.
+     */
+    private static final String SQL_LOAD_BIOME_COLUMN = "SELECT `chunk_z`, `biome` FROM `biomes`"
+        + " WHERE `chunk_x` = ? AND `chunk_z` BETWEEN ? AND ?";
+    public static final int MAX_REGION_BATCH = 16;
+    public static final int MAX_STRUCTURE_BATCH = 64;
+    private static final int BUSY_TIMEOUT = 5000;
+
+    /**
+     * A read-only connection with its own statements.  Only ever used
+     * by one thread at a time.
+     */
+    private final class Reader {
+        private final Connection readConnection;
+        private final PreparedStatement stmtFindStructureRef;
+        private final PreparedStatement stmtFindStructure;
+        private final PreparedStatement stmtFindBiome;
+        private final PreparedStatement stmtLoadBiomes;
+        private final PreparedStatement stmtGetAllBiomes;
+        private final PreparedStatement stmtGetAllStructureTypes;
+        private final PreparedStatement stmtDiscoveredStats;
+        private final PreparedStatement stmtPopulatedRegions;
+        private final PreparedStatement stmtAllCenters;
+        private final PreparedStatement stmtAllBoxes;
+        private final PreparedStatement stmtFindMissingChildren;
+        /**
+         * Region hydration statements by number of regions in the
+         * upper and number of types in the lower half.
+         */
+        private final Map<Long, PreparedStatement> stmtsLoadRegions = new HashMap<>();
+        /** Structure lookup statements by number of ids. */
+        private final Map<Integer, PreparedStatement> stmtsFindStructures = new HashMap<>();
+
+        private Reader() throws SQLException {
+            readConnection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile);
+            try (Statement statement = readConnection.createStatement()) {
+                statement.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT);
+                statement.execute("PRAGMA query_only = true");
+            }
+            stmtFindStructureRef = readConnection.prepareStatement("SELECT * FROM `struct_refs` WHERE `region_x` = ? AND `region_z` = ?");
+            stmtFindStructure = readConnection.prepareStatement("SELECT * FROM `structures` WHERE `id` = ?");
+            stmtFindBiome = readConnection.prepareStatement("SELECT `biome` FROM `biomes` WHERE `chunk_x` = ? AND `chunk_z` = ?");
+            stmtLoadBiomes = readConnection.prepareStatement(SQL_LOAD_BIOME_COLUMN);
+            stmtGetAllBiomes = readConnection.prepareStatement("SELECT `chunk_x`, `chunk_z`, `biome` FROM `biomes`");
+            stmtGetAllStructureTypes = readConnection.prepareStatement("SELECT `type` FROM `structures` GROUP BY `type`");
+            stmtDiscoveredStats = readConnection.prepareStatement("SELECT COUNT(*) `count`, `discovered` FROM `structures` WHERE `type` = ? GROUP BY `discovered`");
+            stmtPopulatedRegions = readConnection.prepareStatement("SELECT DISTINCT `region_x`, `region_z` FROM `struct_refs` LIMIT ?");
+            stmtAllCenters = readConnection.prepareStatement("SELECT `id`, `type`, `ax`, `az`, `bx`, `bz`, `discovered` FROM `structures`");
+            stmtAllBoxes = readConnection.prepareStatement("SELECT `id`, `type`, `ax`, `ay`, `az`, `bx`, `by`, `bz`, `discovered` FROM `structures`");
+            stmtFindMissingChildren = readConnection.prepareStatement("SELECT `id`, `json` FROM `structures`"
+                                                                      + " WHERE `id` > ? AND `children` IS NULL AND `type` LIKE 'minecraft:%'"
+                                                                      + " ORDER BY `id` LIMIT ?");
+        }
+
+        private PreparedStatement getFindStructuresStatement(int size) throws SQLException {
+            PreparedStatement result = stmtsFindStructures.get(size);
+            if (result != null) return result;
+            List<String> params = new ArrayList<>(size);
+            for (int i = 0; i < size; i += 1) params.add("?");
+            result = readConnection.prepareStatement("SELECT * FROM `structures` WHERE `id` IN (" + String.join(", ", params) + ")");
+            stmtsFindStructures.put(size, result);
+            return result;
+        }
+
+        /**
+         * Get the statement for a number of regions.  With a type
+         * count above zero, the structure types are bound after the
+         * region coordinates.
+         */
+        private PreparedStatement getLoadRegionsStatement(int size, int typeCount) throws SQLException {
+            final long key = ((long) size << 32) | typeCount;
+            PreparedStatement result = stmtsLoadRegions.get(key);
+            if (result != null) return result;
+            List<String> conditions = new ArrayList<>(size);
+            for (int i = 0; i < size; i += 1) conditions.add("(r.`region_x` = ? AND r.`region_z` = ?)");
+            String sql = "SELECT s.*, r.`region_x`, r.`region_z`"
+                + " FROM `struct_refs` r"
+                + " JOIN `structures` s ON s.`id` = r.`structure_id`"
+                + " WHERE (" + String.join(" OR ", conditions) + ")";
+            if (typeCount > 0) {
+                List<String> params = new ArrayList<>(typeCount);
+                for (int i = 0; i < typeCount; i += 1) params.add("?");
+                sql += " AND s.`type` IN (" + String.join(", ", params) + ")";
+            }
+            result = readConnection.prepareStatement(sql);
+            stmtsLoadRegions.put(key, result);
+            return result;
+        }
+
+        private void close() throws SQLException {
+            stmtFindStructureRef.close();
+            stmtFindStructure.close();
+            stmtFindBiome.close();
+            stmtLoadBiomes.close();
+            stmtGetAllBiomes.close();
+            stmtGetAllStructureTypes.close();
+            stmtDiscoveredStats.close();
+            stmtPopulatedRegions.close();
+            stmtAllCenters.close();
+            stmtAllBoxes.close();
+            stmtFindMissingChildren.close();
+            for (PreparedStatement it : stmtsLoadRegions.values()) it.close();
+            for (PreparedStatement it : stmtsFindStructures.values()) it.close();
+            readConnection.close();
+        }
+    }
+
+    @FunctionalInterface
+    private interface ReadTask<T> {
+        T run(Reader reader) throws SQLException;
+    }
+
+    /**
+     * Borrow a reader from the pool for the duration of the task,
+     * waiting for one to become available if necessary.  The wait
+     * counts towards the timer.  The owner thread uses its own
+     * reader.
+     */
+    private <T> T read(Timer timer, ReadTask<T> task) {
+        final BlockingQueue<Reader> pool = Thread.currentThread() == ownerThread
+            ? ownerReaders
+            : readers;
+        if (pool == null) throw new IllegalStateException("[" + worldName + "] Data store disabled");
+        final long start = StructureMetrics.start(timer);
+        final Reader reader;
+        try {
+            reader = pool.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ie);
+        }
+        try {
+            return task.run(reader);
+        } catch (SQLException sqle) {
+            throw new IllegalStateException(sqle);
+        } finally {
+            pool.add(reader);
+            StructureMetrics.stop(timer, start);
+        }
+    }
+
+    @FunctionalInterface
+    private interface WriteTask<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * Run a task on the writer connection while holding the writer
+     * lock.  The wait for the lock counts towards the timer.
+     */
+    private <T> T write(Timer timer, WriteTask<T> task) {
+        final long start = StructureMetrics.start(timer);
+        try {
+            synchronized (this) {
+                return task.run();
+            }
+        } catch (SQLException sqle) {
+            throw new IllegalStateException(sqle);
+        } finally {
+            StructureMetrics.stop(timer, start);
+        }
+    }
 
     public void enable() {
         try {
@@ -57,6 +268,9 @@ public final class SQLiteDataStore {
             throw new IllegalStateException(sqle);
         }
         try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = NORMAL");
+            statement.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT);
             statement.execute("CREATE TABLE IF NOT EXISTS `structures` ("
                               + " `id` INTEGER PRIMARY KEY,"
                               + " `type` VARCHAR(255) NOT NULL,"
@@ -69,7 +283,8 @@ public final class SQLiteDataStore {
                               + " `by` INTEGER NOT NULL,"
                               + " `bz` INTEGER NOT NULL,"
                               + " `json` TEXT NOT NULL,"
-                              + " `discovered` INTEGER NOT NULL"
+                              + " `discovered` INTEGER NOT NULL,"
+                              + " `children` BLOB"
                               + ")");
             statement.execute("CREATE TABLE IF NOT EXISTS `struct_refs` ("
                               + " `id` INTEGER PRIMARY KEY,"
@@ -90,38 +305,67 @@ public final class SQLiteDataStore {
         }
         updateStructuresTable();
         try {
-            stmt = connection.createStatement();
-            stmtFindStructureRef = connection.prepareStatement("SELECT * FROM `struct_refs` WHERE `region_x` = ? AND `region_z` = ?");
-            stmtFindStructure = connection.prepareStatement("SELECT * FROM `structures` WHERE `id` = ?");
             stmtInsertStructure = connection.prepareStatement("INSERT INTO `structures`"
-                                                              + " (`type`, `chunk_x`, `chunk_z`, `ax`, `ay`, `az`, `bx`, `by`, `bz`, `json`, `discovered`)"
-                                                              + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                                                              + " (`type`, `chunk_x`, `chunk_z`, `ax`, `ay`, `az`, `bx`, `by`, `bz`, `json`, `discovered`, `children`)"
+                                                              + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
                                                               Statement.RETURN_GENERATED_KEYS);
-            stmtUpdateStructure = connection.prepareStatement("UPDATE `structures` SET `json` = ? WHERE `id` = ?");
-            stmtUpdateDiscovered = connection.prepareStatement("UPDATE `structures` SET `discovered` = ? WHERE `id` = ?");
+            stmtInsertStructRef = connection.prepareStatement("INSERT INTO `struct_refs` (`structure_id`, `region_x`, `region_z`) VALUES (?, ?, ?)");
+            // The children are decoded from the JSON again until the
+            // next backfill, so they never go stale
+            stmtUpdateStructure = connection.prepareStatement("UPDATE `structures` SET `json` = ?, `children` = NULL WHERE `id` = ?");
+            stmtUpdateDiscovered = connection.prepareStatement("UPDATE `structures` SET `discovered` = ? WHERE `id` = ? AND `discovered` != ?");
             stmtInsertBiome = connection.prepareStatement("INSERT INTO `biomes` (`chunk_x`, `chunk_z`, `biome`) VALUES (?, ?, ?)");
-            stmtFindBiome = connection.prepareStatement("SELECT `biome` FROM `biomes` WHERE `chunk_x` = ? AND `chunk_z` = ?");
-            stmtGetAllBiomes = connection.prepareStatement("SELECT * FROM `biomes`");
-            stmtGetAllStructureTypes = connection.prepareStatement("SELECT `type` FROM `structures` GROUP BY `type`");
-            stmtDiscoveredStats = connection.prepareStatement("SELECT COUNT(*) `count`, `discovered` FROM `structures` WHERE `type` = ? GROUP BY `discovered`");
+            // Skips rows whose JSON changed since the backfill read it
+            stmtUpdateChildren = connection.prepareStatement("UPDATE `structures` SET `children` = ? WHERE `id` = ? AND `json` IS ?");
+            final BlockingQueue<Reader> pool = new ArrayBlockingQueue<>(Math.max(1, readerCount));
+            for (int i = 0; i < Math.max(1, readerCount); i += 1) {
+                pool.add(new Reader());
+            }
+            final BlockingQueue<Reader> ownerPool = new ArrayBlockingQueue<>(1);
+            ownerPool.add(new Reader());
+            readers = pool;
+            ownerReaders = ownerPool;
+            ownerThread = Thread.currentThread();
         } catch (SQLException sqle) {
             throw new IllegalStateException(sqle);
         }
     }
 
-    public void disable() {
+    /**
+     * Close all connections.  Readers which are still in use are
+     * waited for briefly.
+     */
+    public synchronized void disable() {
+        final BlockingQueue<Reader> pool = readers;
+        final BlockingQueue<Reader> ownerPool = ownerReaders;
+        readers = null;
+        ownerReaders = null;
+        ownerThread = null;
+        snapshotState = null;
+        try {
+            for (int i = 0; pool != null && i < Math.max(1, readerCount); i += 1) {
+                final Reader reader = pool.poll(5L, TimeUnit.SECONDS);
+                if (reader == null) {
+                    warn("[" + worldName + "] Reader connection still in use");
+                    break;
+                }
+                reader.close();
+            }
+            final Reader reader = ownerPool != null ? ownerPool.poll(5L, TimeUnit.SECONDS) : null;
+            if (reader != null) reader.close();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (SQLException sqle) {
+            logger().log(Level.SEVERE, "[" + worldName + "] Disabling readers", sqle);
+        }
         try {
-            stmtFindStructureRef.close();
-            stmtFindStructure.close();
             stmtInsertStructure.close();
+            stmtInsertStructRef.close();
             stmtUpdateStructure.close();
             stmtUpdateDiscovered.close();
             stmtInsertBiome.close();
-            stmtFindBiome.close();
-            stmtGetAllBiomes.close();
-            stmtGetAllStructureTypes.close();
-            stmtDiscoveredStats.close();
-            stmt.close();
+            stmtUpdateChildren.close();
+            if (stmtRegionChanges != null) stmtRegionChanges.close();
             connection.close();
         } catch (SQLException sqle) {
             logger().log(Level.SEVERE, "[" + worldName + "] Disabling", sqle);
@@ -133,262 +377,1101 @@ public final class SQLiteDataStore {
      * @return the id list
      */
     public List<Integer> getStructureRefs(int x, int z) {
-        try {
-            stmtFindStructureRef.setInt(1, x);
-            stmtFindStructureRef.setInt(2, z);
-            try (ResultSet resultSet = stmtFindStructureRef.executeQuery()) {
-                List<Integer> list = new ArrayList<>();
-                while (resultSet.next()) {
-                    list.add(resultSet.getInt("structure_id"));
+        return read(Timer.SQL_FIND_STRUCTURE_REFS, reader -> {
+                reader.stmtFindStructureRef.setInt(1, x);
+                reader.stmtFindStructureRef.setInt(2, z);
+                try (ResultSet resultSet = reader.stmtFindStructureRef.executeQuery()) {
+                    List<Integer> list = new ArrayList<>();
+                    while (resultSet.next()) {
+                        list.add(resultSet.getInt("structure_id"));
+                    }
+                    return list;
+                }
+            });
+    }
+
+    public Structure getStructure(int id) {
+        final Structure snapshotStructure = findInSnapshot(id);
+        if (snapshotStructure != null) return snapshotStructure;
+        return read(Timer.SQL_FIND_STRUCTURE, reader -> {
+                reader.stmtFindStructure.setInt(1, id);
+                try (ResultSet resultSet = reader.stmtFindStructure.executeQuery()) {
+                    return resultSet.next()
+                        ? readStructure(resultSet)
+                        : null;
+                }
+            });
+    }
+
+    /**
+     * Load structures by id.  Ids are queried in batches, each batch
+     * size using its own cached statement.
+     */
+    public List<Structure> getStructures(List<Integer> ids) {
+        if (ids.isEmpty()) return List.of();
+        final List<Structure> list = new ArrayList<>(ids.size());
+        final List<Integer> sqlIds;
+        if (snapshotState != null) {
+            sqlIds = new ArrayList<>();
+            for (int id : ids) {
+                final Structure structure = findInSnapshot(id);
+                if (structure != null) {
+                    list.add(structure);
+                } else {
+                    sqlIds.add(id);
                 }
-                return list;
             }
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
+            if (sqlIds.isEmpty()) return list;
+        } else {
+            sqlIds = ids;
         }
+        return read(Timer.SQL_FIND_STRUCTURES, reader -> {
+                for (int offset = 0; offset < sqlIds.size(); offset += MAX_STRUCTURE_BATCH) {
+                    final int size = Math.min(MAX_STRUCTURE_BATCH, sqlIds.size() - offset);
+                    final PreparedStatement statement = reader.getFindStructuresStatement(size);
+                    for (int i = 0; i < size; i += 1) {
+                        statement.setInt(i + 1, sqlIds.get(offset + i));
+                    }
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            list.add(readStructure(resultSet));
+                        }
+                    }
+                }
+                return list;
+            });
     }
 
-    public Structure getStructure(int id) {
-        try {
-            stmtFindStructure.setInt(1, id);
-            try (ResultSet resultSet = stmtFindStructure.executeQuery()) {
-                if (resultSet.next()) {
-                    Structure structure = new Structure(worldName,
-                                                        NamespacedKey.fromString(resultSet.getString("type")),
-                                                        Vec2i.of(resultSet.getInt("chunk_x"),
-                                                                 resultSet.getInt("chunk_z")),
-                                                        new Cuboid(resultSet.getInt("ax"),
-                                                                   resultSet.getInt("ay"),
-                                                                   resultSet.getInt("az"),
-                                                                   resultSet.getInt("bx"),
-                                                                   resultSet.getInt("by"),
-                                                                   resultSet.getInt("bz")),
-                                                        resultSet.getString("json"),
-                                                        resultSet.getInt("discovered") != 0);
-                    structure.setId(resultSet.getInt("id"));
-                    return structure;
+    /**
+     * The structures of one region, as returned by loadRegions.
+     * @param structures the freshly loaded structures
+     * @param cachedIds the ids which were skipped because the caller
+     *   already has them cached
+     * @param biomes the biome of each of the 32x32 chunks, indexed by
+     *   (chunkZ & 31) << 5 | (chunkX & 31), null where unknown
+     */
+    public record RegionStructures(int regionX, int regionZ, List<Structure> structures, List<Integer> cachedIds, Biome[] biomes) { }
+
+    /**
+     * Load all structures of the given regions in one query per
+     * batch, joining the struct_refs with the structures table.
+     * Structures for which isCached returns true are not decoded, but
+     * only reported by id.  The chunk biomes of each region are loaded
+     * along with the structures.
+     *
+     * @param regions the region coordinates
+     * @param isCached check if a structure id is cached by the caller.
+     *   Called on the thread calling this method.
+     * @return one entry per requested region, in the same order
+     */
+    public List<RegionStructures> loadRegions(List<Vec2i> regions, IntPredicate isCached) {
+        return loadRegions(regions, isCached, null);
+    }
+
+    /**
+     * Load the structures of the given types in the given regions.
+     * The type filter is part of the query, so other structures are
+     * never read.  Biomes are only loaded without a filter.
+     *
+     * @param types the structure type keys, or null for all types
+     * @see #loadRegions(List, IntPredicate)
+     *
+     * Regions which did not change since the snapshot was exported
+     * are read from the snapshot.
+     */
+    public List<RegionStructures> loadRegions(List<Vec2i> regions, IntPredicate isCached, List<String> types) {
+        final List<RegionStructures> result = new ArrayList<>(regions.size());
+        final Map<Vec2i, RegionStructures> regionMap = new HashMap<>();
+        for (Vec2i region : regions) {
+            RegionStructures it = new RegionStructures(region.x, region.z, new ArrayList<>(), new ArrayList<>(), new Biome[32 * 32]);
+            result.add(it);
+            regionMap.put(region, it);
+        }
+        // Structures which span several of the requested regions are
+        // only decoded once.
+        final Map<Integer, Structure> loaded = new HashMap<>();
+        final SnapshotState state = snapshotState;
+        final List<Vec2i> sqlRegions;
+        if (state != null) {
+            sqlRegions = new ArrayList<>();
+            final long start = StructureMetrics.start(Timer.SNAPSHOT_LOAD_REGIONS);
+            for (RegionStructures region : result) {
+                if (state.isClean(region.regionX(), region.regionZ())) {
+                    state.snapshot().loadRegion(region, loaded, isCached, types, this::parseBiome);
                 } else {
-                    return null;
+                    sqlRegions.add(Vec2i.of(region.regionX(), region.regionZ()));
                 }
             }
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
+            StructureMetrics.stop(Timer.SNAPSHOT_LOAD_REGIONS, start);
+            if (sqlRegions.isEmpty()) return result;
+        } else {
+            sqlRegions = regions;
         }
+        read(Timer.SQL_LOAD_REGIONS, reader -> {
+            for (int offset = 0; offset < sqlRegions.size(); offset += MAX_REGION_BATCH) {
+                final int size = Math.min(MAX_REGION_BATCH, sqlRegions.size() - offset);
+                final int typeCount = types != null ? types.size() : 0;
+                final PreparedStatement statement = reader.getLoadRegionsStatement(size, typeCount);
+                for (int i = 0; i < size; i += 1) {
+                    Vec2i region = sqlRegions.get(offset + i);
+                    statement.setInt(i * 2 + 1, region.x);
+                    statement.setInt(i * 2 + 2, region.z);
+                }
+                for (int i = 0; i < typeCount; i += 1) {
+                    statement.setString(size * 2 + i + 1, types.get(i));
+                }
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        final RegionStructures region = regionMap.get(Vec2i.of(resultSet.getInt("region_x"),
+                                                                               resultSet.getInt("region_z")));
+                        final int id = resultSet.getInt("id");
+                        Structure structure = loaded.get(id);
+                        if (structure == null && isCached.test(id)) {
+                            region.cachedIds().add(id);
+                            continue;
+                        }
+                        if (structure == null) {
+                            structure = readStructure(resultSet);
+                            loaded.put(id, structure);
+                        }
+                        region.structures().add(structure);
+                    }
+                }
+            }
+            if (types == null) {
+                for (Vec2i region : sqlRegions) {
+                    loadBiomes(reader, regionMap.get(region));
+                }
+            }
+            return null;
+        });
+        return result;
     }
 
-    public List<Structure> getStructures(List<Integer> ids) {
-        if (ids.isEmpty()) return List.of();
-        List<Structure> list = new ArrayList<>();
-        List<String> idStrings = new ArrayList<>(ids.size());
-        for (int id : ids) idStrings.add("" + id);
-        try (ResultSet resultSet = stmt.executeQuery("SELECT * FROM `structures` WHERE `id` IN (" + String.join(", ", idStrings) + ")")) {
-            while (resultSet.next()) {
-                Structure structure = new Structure(worldName,
-                                                    NamespacedKey.fromString(resultSet.getString("type")),
-                                                    Vec2i.of(resultSet.getInt("chunk_x"),
-                                                             resultSet.getInt("chunk_z")),
-                                                    new Cuboid(resultSet.getInt("ax"),
-                                                               resultSet.getInt("ay"),
-                                                               resultSet.getInt("az"),
-                                                               resultSet.getInt("bx"),
-                                                               resultSet.getInt("by"),
-                                                               resultSet.getInt("bz")),
-                                                    resultSet.getString("json"),
-                                                    resultSet.getInt("discovered") != 0);
-                structure.setId(resultSet.getInt("id"));
-                list.add(structure);
+    private void loadBiomes(Reader reader, RegionStructures region) throws SQLException {
+        readRegionBiomes(reader.stmtLoadBiomes, region.regionX(), region.regionZ(),
+                         (biome, index) -> region.biomes()[index] = parseBiome(biome));
+    }
+
+    /**
+     * Read the stored biomes of a region with SQL_LOAD_BIOME_COLUMN,
+     * one index seek per column of chunks.  The visitor gets the
+     * biome key and the chunk index within the region.
+     */
+    private static void readRegionBiomes(PreparedStatement statement, int regionX, int regionZ,
+                                         ObjIntConsumer<String> visitor) throws SQLException {
+        final int minX = regionX << 5;
+        final int minZ = regionZ << 5;
+        statement.setInt(2, minZ);
+        statement.setInt(3, minZ + 31);
+        for (int x = 0; x < 32; x += 1) {
+            statement.setInt(1, minX + x);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    visitor.accept(resultSet.getString("biome"), ((resultSet.getInt("chunk_z") & 31) << 5) | x);
+                }
             }
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
         }
-        return list;
+    }
+
+    /**
+     * Look up a biome by its key, or null if it is invalid.
+     */
+    Biome parseBiome(String name) {
+        if (name == null) return null;
+        NamespacedKey namespacedKey = NamespacedKey.fromString(name);
+        Biome biome = namespacedKey != null
+            ? registryAccess().getRegistry(RegistryKey.BIOME).get(namespacedKey)
+            : null;
+        if (biome == null) {
+            warn("[" + worldName + "] Invalid biome: " + name);
+        }
+        return biome;
+    }
+
+    /**
+     * Find up to limit regions which contain at least one structure.
+     */
+    public List<Vec2i> getPopulatedRegions(int limit) {
+        return read(Timer.SQL_POPULATED_REGIONS, reader -> {
+                reader.stmtPopulatedRegions.setInt(1, limit);
+                try (ResultSet resultSet = reader.stmtPopulatedRegions.executeQuery()) {
+                    List<Vec2i> result = new ArrayList<>();
+                    while (resultSet.next()) {
+                        result.add(Vec2i.of(resultSet.getInt("region_x"), resultSet.getInt("region_z")));
+                    }
+                    return result;
+                }
+            });
+    }
+
+    /**
+     * Stream every region which contains at least one structure to
+     * the visitor.  The visitor is called on the calling thread while
+     * a reader connection is held.
+     */
+    public void forEachPopulatedRegion(RegionVisitor visitor) {
+        read(Timer.SQL_POPULATED_REGIONS, reader -> {
+                // A negative limit means no limit
+                reader.stmtPopulatedRegions.setInt(1, -1);
+                try (ResultSet resultSet = reader.stmtPopulatedRegions.executeQuery()) {
+                    while (resultSet.next()) {
+                        visitor.visit(resultSet.getInt("region_x"), resultSet.getInt("region_z"));
+                    }
+                }
+                return null;
+            });
+    }
+
+    /**
+     * Read a structure from the current row.  The children of
+     * vanilla structures are decoded from the binary column if it was
+     * filled in, otherwise the Structure constructor parses them from
+     * the JSON data.
+     */
+    private Structure readStructure(ResultSet resultSet) throws SQLException {
+        final NamespacedKey key = NamespacedKey.fromString(resultSet.getString("type"));
+        final Vec2i chunk = Vec2i.of(resultSet.getInt("chunk_x"),
+                                     resultSet.getInt("chunk_z"));
+        final Cuboid boundingBox = new Cuboid(resultSet.getInt("ax"),
+                                              resultSet.getInt("ay"),
+                                              resultSet.getInt("az"),
+                                              resultSet.getInt("bx"),
+                                              resultSet.getInt("by"),
+                                              resultSet.getInt("bz"));
+        final String json = resultSet.getString("json");
+        final boolean discovered = resultSet.getInt("discovered") != 0;
+        final byte[] childData = resultSet.getBytes("children");
+        List<StructurePart> children = null;
+        if (childData != null) {
+            try {
+                children = StructureChildren.decode(childData);
+            } catch (IllegalArgumentException iae) {
+                logger().log(Level.SEVERE, "[" + worldName + "] Decoding children of structure " + resultSet.getInt("id"), iae);
+            }
+        }
+        Structure structure = children != null
+            ? new Structure(worldName, key, chunk, boundingBox, json, discovered, children)
+            : new Structure(worldName, key, chunk, boundingBox, json, discovered);
+        structure.setId(resultSet.getInt("id"));
+        return structure;
+    }
+
+    /**
+     * The result of one backfill batch.
+     * @param count the number of structures updated
+     * @param lastId the highest id updated, where the next batch
+     *   starts
+     */
+    public record BackfillBatch(int count, int lastId) { }
+
+    /**
+     * Fill in the children column of vanilla structures which do not
+     * have it yet, up to the given amount, in one transaction.  The
+     * batches page through the table by id, so each one only reads
+     * the rows after the previous one.  Structures whose JSON cannot
+     * be parsed get an empty list, so they are not attempted again.
+     *
+     * The rows are read on a reader connection and parsed without
+     * the writer lock, which is only held for the update.  A row
+     * whose JSON changed meanwhile is left alone.
+     * @param afterId the last id of the previous batch, or 0
+     */
+    public BackfillBatch backfillChildren(int afterId, int limit) {
+        final Map<Integer, String> jsonMap = new LinkedHashMap<>();
+        final int lastId = read(Timer.SQL_FIND_MISSING_CHILDREN, reader -> {
+                int last = afterId;
+                reader.stmtFindMissingChildren.setInt(1, afterId);
+                reader.stmtFindMissingChildren.setInt(2, limit);
+                try (ResultSet resultSet = reader.stmtFindMissingChildren.executeQuery()) {
+                    while (resultSet.next()) {
+                        last = resultSet.getInt("id");
+                        jsonMap.put(last, resultSet.getString("json"));
+                    }
+                }
+                return last;
+            });
+        if (jsonMap.isEmpty()) return new BackfillBatch(0, lastId);
+        // Parse without holding the writer lock
+        final Map<Integer, byte[]> encoded = new LinkedHashMap<>();
+        for (Map.Entry<Integer, String> entry : jsonMap.entrySet()) {
+            List<StructurePart> children;
+            try {
+                children = StructureChildren.parseJson(entry.getValue());
+            } catch (RuntimeException re) {
+                warn("[" + worldName + "] Cannot parse children of structure " + entry.getKey() + ": " + re.getMessage());
+                children = List.of();
+            }
+            encoded.put(entry.getKey(), StructureChildren.encode(children));
+        }
+        write(Timer.SQL_BACKFILL_CHILDREN, () -> {
+                connection.setAutoCommit(false);
+                try {
+                    for (Map.Entry<Integer, byte[]> entry : encoded.entrySet()) {
+                        stmtUpdateChildren.setBytes(1, entry.getValue());
+                        stmtUpdateChildren.setInt(2, entry.getKey());
+                        stmtUpdateChildren.setString(3, jsonMap.get(entry.getKey()));
+                        stmtUpdateChildren.addBatch();
+                    }
+                    stmtUpdateChildren.executeBatch();
+                    connection.commit();
+                    refreshChanges();
+                } catch (SQLException sqle) {
+                    connection.rollback();
+                    throw sqle;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+                return null;
+            });
+        return new BackfillBatch(jsonMap.size(), lastId);
     }
 
     public List<Structure> getStructures(int x, int z) {
-        return getStructures(getStructureRefs(x, z));
+        return loadRegions(List.of(Vec2i.of(x, z)), id -> false).get(0).structures();
     }
 
     public List<Vec2i> addStructure(Structure structure) {
-        try {
-            stmtInsertStructure.setString(1, structure.getKey().toString());
-            stmtInsertStructure.setInt(2, structure.getChunk().getX());
-            stmtInsertStructure.setInt(3, structure.getChunk().getZ());
-            Cuboid cuboid = structure.getBoundingBox();
-            stmtInsertStructure.setInt(4, cuboid.ax);
-            stmtInsertStructure.setInt(5, cuboid.ay);
-            stmtInsertStructure.setInt(6, cuboid.az);
-            stmtInsertStructure.setInt(7, cuboid.bx);
-            stmtInsertStructure.setInt(8, cuboid.by);
-            stmtInsertStructure.setInt(9, cuboid.bz);
-            stmtInsertStructure.setString(10, structure.getJson());
-            stmtInsertStructure.setInt(11, structure.isDiscovered() ? 1 : 0);
-            final int structureId;
-            stmtInsertStructure.executeUpdate();
-            try (ResultSet generatedKeys = stmtInsertStructure.getGeneratedKeys()) {
-                if (!generatedKeys.next()) throw new IllegalStateException("No id: " + structure);
-                structureId = generatedKeys.getInt(1);
-                structure.setId(structureId);
-            }
-            // Reference
-            final int cax = cuboid.ax >> 9;
-            final int caz = cuboid.az >> 9;
-            final int cbx = cuboid.bx >> 9;
-            final int cbz = cuboid.bz >> 9;
-            List<String> values = new ArrayList<>();
-            List<Vec2i> result = new ArrayList<>();
-            for (int cz = caz; cz <= cbz; cz += 1) {
-                for (int cx = cax; cx <= cbx; cx += 1) {
-                    values.add("(" + structureId + "," + cx + "," + cz + ")");
-                    result.add(Vec2i.of(cx, cz));
+        addStructures(List.of(structure));
+        return getRegions(structure.getBoundingBox());
+    }
+
+    /**
+     * Insert many structures in one transaction.  Each structure
+     * receives its new id.  The struct_refs rows are written in
+     * batches.  If anything fails, the whole transaction is rolled
+     * back and the ids are reset to 0.
+     */
+    public void addStructures(Collection<Structure> structures) {
+        write(Timer.SQL_INSERT_STRUCTURES, () -> {
+                connection.setAutoCommit(false);
+                try {
+                    int batchSize = 0;
+                    for (Structure structure : structures) {
+                        final int structureId = insertStructure(structure);
+                        for (Vec2i region : getRegions(structure.getBoundingBox())) {
+                            stmtInsertStructRef.setInt(1, structureId);
+                            stmtInsertStructRef.setInt(2, region.x);
+                            stmtInsertStructRef.setInt(3, region.z);
+                            stmtInsertStructRef.addBatch();
+                            batchSize += 1;
+                        }
+                        if (batchSize >= 1000) {
+                            stmtInsertStructRef.executeBatch();
+                            batchSize = 0;
+                        }
+                    }
+                    if (batchSize > 0) stmtInsertStructRef.executeBatch();
+                    connection.commit();
+                    refreshChanges();
+                    for (Structure structure : structures) {
+                        stats.add(structure.getKey().toString(), 1, structure.isDiscovered() ? 1 : 0);
+                    }
+                } catch (SQLException | RuntimeException e) {
+                    stmtInsertStructRef.clearBatch();
+                    connection.rollback();
+                    for (Structure structure : structures) structure.setId(0);
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
                 }
+                return null;
+            });
+    }
+
+    /**
+     * Insert one structure row and set its id.
+     * @return the new id
+     */
+    private int insertStructure(Structure structure) throws SQLException {
+        stmtInsertStructure.setString(1, structure.getKey().toString());
+        stmtInsertStructure.setInt(2, structure.getChunk().getX());
+        stmtInsertStructure.setInt(3, structure.getChunk().getZ());
+        Cuboid cuboid = structure.getBoundingBox();
+        stmtInsertStructure.setInt(4, cuboid.ax);
+        stmtInsertStructure.setInt(5, cuboid.ay);
+        stmtInsertStructure.setInt(6, cuboid.az);
+        stmtInsertStructure.setInt(7, cuboid.bx);
+        stmtInsertStructure.setInt(8, cuboid.by);
+        stmtInsertStructure.setInt(9, cuboid.bz);
+        stmtInsertStructure.setString(10, structure.getJson());
+        stmtInsertStructure.setInt(11, structure.isDiscovered() ? 1 : 0);
+        stmtInsertStructure.setBytes(12, structure.isVanilla()
+                                     ? StructureChildren.encode(structure.getChildren())
+                                     : null);
+        stmtInsertStructure.executeUpdate();
+        try (ResultSet generatedKeys = stmtInsertStructure.getGeneratedKeys()) {
+            if (!generatedKeys.next()) throw new IllegalStateException("No id: " + structure);
+            final int structureId = generatedKeys.getInt(1);
+            structure.setId(structureId);
+            return structureId;
+        }
+    }
+
+    /**
+     * Get all regions a bounding box touches.
+     */
+    public static List<Vec2i> getRegions(Cuboid cuboid) {
+        final int rax = cuboid.ax >> 9;
+        final int raz = cuboid.az >> 9;
+        final int rbx = cuboid.bx >> 9;
+        final int rbz = cuboid.bz >> 9;
+        List<Vec2i> result = new ArrayList<>((rbx - rax + 1) * (rbz - raz + 1));
+        for (int rz = raz; rz <= rbz; rz += 1) {
+            for (int rx = rax; rx <= rbx; rx += 1) {
+                result.add(Vec2i.of(rx, rz));
             }
-            stmt.execute("INSERT INTO `struct_refs` (`structure_id`, `region_x`, `region_z`) VALUES " + String.join(", ", values));
-            return result;
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
         }
+        return result;
     }
 
     public void updateStructureJson(Structure structure) {
-        try {
-            stmtUpdateStructure.setString(1, structure.getJson());
-            stmtUpdateStructure.setInt(2, structure.getId());
-            stmtUpdateStructure.executeUpdate();
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
-        }
+        write(Timer.SQL_UPDATE_JSON, () -> {
+                stmtUpdateStructure.setString(1, structure.getJson());
+                stmtUpdateStructure.setInt(2, structure.getId());
+                stmtUpdateStructure.executeUpdate();
+                refreshChanges();
+                return null;
+            });
     }
 
     public void updateDiscovered(Structure structure) {
-        try {
-            stmtUpdateDiscovered.setInt(1, structure.isDiscovered() ? 1 : 0);
-            stmtUpdateDiscovered.setInt(2, structure.getId());
-            stmtUpdateDiscovered.executeUpdate();
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
-        }
+        write(Timer.SQL_UPDATE_DISCOVERED, () -> {
+                final int value = structure.isDiscovered() ? 1 : 0;
+                stmtUpdateDiscovered.setInt(1, value);
+                stmtUpdateDiscovered.setInt(2, structure.getId());
+                stmtUpdateDiscovered.setInt(3, value);
+                if (stmtUpdateDiscovered.executeUpdate() > 0) {
+                    stats.add(structure.getKey().toString(), 0, value == 1 ? 1 : -1);
+                    refreshChanges();
+                }
+                return null;
+            });
     }
 
+    /**
+     * Save several queued structure updates in one transaction.
+     */
+    public void updateStructures(List<PendingWrite> writes) {
+        write(Timer.SQL_UPDATE_STRUCTURES, () -> {
+                connection.setAutoCommit(false);
+                try {
+                    int jsonCount = 0;
+                    final List<PendingWrite> discoveredWrites = new ArrayList<>();
+                    for (PendingWrite write : writes) {
+                        if (write.json() != null) {
+                            stmtUpdateStructure.setString(1, write.json());
+                            stmtUpdateStructure.setInt(2, write.id());
+                            stmtUpdateStructure.addBatch();
+                            jsonCount += 1;
+                        }
+                        if (write.discovered() != null) {
+                            final int value = write.discovered() ? 1 : 0;
+                            stmtUpdateDiscovered.setInt(1, value);
+                            stmtUpdateDiscovered.setInt(2, write.id());
+                            stmtUpdateDiscovered.setInt(3, value);
+                            stmtUpdateDiscovered.addBatch();
+                            discoveredWrites.add(write);
+                        }
+                    }
+                    if (jsonCount > 0) stmtUpdateStructure.executeBatch();
+                    final int[] changed = !discoveredWrites.isEmpty()
+                        ? stmtUpdateDiscovered.executeBatch()
+                        : new int[0];
+                    connection.commit();
+                    refreshChanges();
+                    // Only rows whose flag actually flipped count
+                    for (int i = 0; i < changed.length; i += 1) {
+                        final PendingWrite write = discoveredWrites.get(i);
+                        if (changed[i] > 0 && write.type() != null) {
+                            stats.add(write.type(), 0, write.discovered() ? 1 : -1);
+                        }
+                    }
+                } catch (SQLException sqle) {
+                    stmtUpdateStructure.clearBatch();
+                    stmtUpdateDiscovered.clearBatch();
+                    connection.rollback();
+                    throw sqle;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+                return null;
+            });
+    }
+
+    /**
+     * Store the biome of a chunk.  Regions which are already cached
+     * will not see the change until they are loaded again.
+     */
     public void setBiome(int chunkX, int chunkZ, String biome) {
-        try {
-            stmtInsertBiome.setInt(1, chunkX);
-            stmtInsertBiome.setInt(2, chunkZ);
-            stmtInsertBiome.setString(3, biome);
-            stmtInsertBiome.executeUpdate();
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
-        }
+        write(Timer.SQL_SET_BIOME, () -> {
+                stmtInsertBiome.setInt(1, chunkX);
+                stmtInsertBiome.setInt(2, chunkZ);
+                stmtInsertBiome.setString(3, biome);
+                stmtInsertBiome.executeUpdate();
+                refreshChanges();
+                return null;
+            });
     }
 
     public Biome getChunkBiome(int chunkX, int chunkZ) {
-        try {
-            stmtFindBiome.setInt(1, chunkX);
-            stmtFindBiome.setInt(2, chunkZ);
-            try (ResultSet resultSet = stmtFindBiome.executeQuery()) {
-                if (!resultSet.next()) return null;
-                String name = resultSet.getString("biome");
-                if (name == null) return null;
-                NamespacedKey namespacedKey = NamespacedKey.fromString(name);
-                Biome biome = registryAccess().getRegistry(RegistryKey.BIOME).get(namespacedKey);
-                if (biome == null) {
-                    warn("[" + worldName + "] Invalid biome: " + name);
-                    return null;
+        return read(Timer.SQL_FIND_BIOME, reader -> {
+                reader.stmtFindBiome.setInt(1, chunkX);
+                reader.stmtFindBiome.setInt(2, chunkZ);
+                try (ResultSet resultSet = reader.stmtFindBiome.executeQuery()) {
+                    if (!resultSet.next()) return null;
+                    return parseBiome(resultSet.getString("biome"));
                 }
-                return biome;
-            }
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
-        }
+            });
+    }
+
+    /**
+     * Stream all stored chunk biomes to the visitor, one row at a
+     * time.  Chunks with an invalid biome are skipped.  The visitor
+     * is called on the calling thread while a reader connection is
+     * held, so it should not wait for other reads.
+     */
+    public void forEachBiome(BiomeVisitor visitor) {
+        read(Timer.SQL_ALL_BIOMES, reader -> {
+                final Map<String, Biome> names = new HashMap<>();
+                try (ResultSet resultSet = reader.stmtGetAllBiomes.executeQuery()) {
+                    while (resultSet.next()) {
+                        final String name = resultSet.getString("biome");
+                        Biome biome = names.get(name);
+                        if (biome == null && !names.containsKey(name)) {
+                            biome = parseBiome(name);
+                            names.put(name, biome);
+                        }
+                        if (biome == null) continue;
+                        visitor.visit(resultSet.getInt("chunk_x"), resultSet.getInt("chunk_z"), biome);
+                    }
+                }
+                return null;
+            });
+    }
+
+    /**
+     * Stream the bounding box center of every structure to the
+     * visitor, one row at a time, without parsing any JSON.  The
+     * visitor is called on the calling thread while a reader
+     * connection is held.
+     */
+    public void forEachStructureCenter(StructureCenterVisitor visitor) {
+        read(Timer.SQL_STRUCTURE_CENTERS, reader -> {
+                try (ResultSet resultSet = reader.stmtAllCenters.executeQuery()) {
+                    while (resultSet.next()) {
+                        visitor.visit(resultSet.getInt("id"),
+                                      resultSet.getString("type"),
+                                      (resultSet.getInt("ax") + resultSet.getInt("bx")) >> 1,
+                                      (resultSet.getInt("az") + resultSet.getInt("bz")) >> 1,
+                                      resultSet.getInt("discovered") != 0);
+                    }
+                }
+                return null;
+            });
+    }
+
+    /**
+     * Stream the bounding box of every structure to the visitor, one
+     * row at a time, without parsing any JSON.  The visitor is called
+     * on the calling thread while a reader connection is held.
+     */
+    public void forEachStructureBox(StructureBoxVisitor visitor) {
+        read(Timer.SQL_STRUCTURE_BOXES, reader -> {
+                try (ResultSet resultSet = reader.stmtAllBoxes.executeQuery()) {
+                    while (resultSet.next()) {
+                        visitor.visit(resultSet.getInt("id"),
+                                      resultSet.getString("type"),
+                                      resultSet.getInt("ax"),
+                                      resultSet.getInt("ay"),
+                                      resultSet.getInt("az"),
+                                      resultSet.getInt("bx"),
+                                      resultSet.getInt("by"),
+                                      resultSet.getInt("bz"),
+                                      resultSet.getInt("discovered") != 0);
+                    }
+                }
+                return null;
+            });
+    }
+
+    /**
+     * Load all stored chunk biomes into a compact map.
+     */
+    public BiomeMap getBiomeMap() {
+        final BiomeMap result = new BiomeMap();
+        forEachBiome(result::put);
+        return result;
     }
 
+    /**
+     * Load all stored chunk biomes into a map.  Prefer forEachBiome
+     * or getBiomeMap on large worlds.
+     */
     public Map<Vec2i, Biome> getAllBiomes() {
-        try (ResultSet resultSet = stmtGetAllBiomes.executeQuery()) {
-            Map<Vec2i, Biome> result = new HashMap<>();
-            while (resultSet.next()) {
-                Vec2i vec = new Vec2i(resultSet.getInt("chunk_x"),
-                                      resultSet.getInt("chunk_z"));
-                String name = resultSet.getString("biome");
-                NamespacedKey namespacedKey = NamespacedKey.fromString(name);
-                Biome biome = registryAccess().getRegistry(RegistryKey.BIOME).get(namespacedKey);
-                if (biome == null) {
-                    warn("[" + worldName + "] Invalid biome: " + name);
-                    continue;
+        final Map<Vec2i, Biome> result = new HashMap<>();
+        forEachBiome((chunkX, chunkZ, biome) -> result.put(Vec2i.of(chunkX, chunkZ), biome));
+        return result;
+    }
+
+    /**
+     * Get all structure types.  Served from the statistics once they
+     * are ready.
+     */
+    public Set<String> getAllStructureTypes() {
+        if (stats.isReady()) return stats.getTypes();
+        return read(Timer.SQL_STRUCTURE_TYPES, reader -> {
+                final Set<String> result = new HashSet<>();
+                try (ResultSet resultSet = reader.stmtGetAllStructureTypes.executeQuery()) {
+                    while (resultSet.next()) {
+                        result.add(resultSet.getString("type"));
+                    }
                 }
-                result.put(vec, biome);
+                return result;
+            });
+    }
+
+    /**
+     * Return 2 integers: The number of undiscovered and discovered
+     * instances of that structure type, followed by the total number,
+     * in that order.  Served from the statistics once they are ready.
+     */
+    public int[] getDiscoveredStats(String structureType) {
+        int[] result = new int[3];
+        if (stats.isReady()) {
+            final TypeStats typeStats = stats.get(structureType);
+            if (typeStats != null) {
+                result[0] = typeStats.undiscovered();
+                result[1] = typeStats.discovered();
+                result[2] = typeStats.total();
             }
             return result;
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
         }
+        read(Timer.SQL_DISCOVERED_STATS, reader -> {
+                reader.stmtDiscoveredStats.setString(1, structureType);
+                try (ResultSet resultSet = reader.stmtDiscoveredStats.executeQuery()) {
+                    while (resultSet.next()) {
+                        final int discovered = resultSet.getInt("discovered");
+                        final int count = resultSet.getInt("count");
+                        result[discovered] = count;
+                    }
+                }
+                return null;
+            });
+        result[2] = result[0] + result[1];
+        return result;
     }
 
-    public Set<String> getAllStructureTypes() {
-        final Set<String> result = new HashSet<>();
-        try (ResultSet resultSet = stmtGetAllStructureTypes.executeQuery()) {
-            while (resultSet.next()) {
-                result.add(resultSet.getString("type"));
-            }
+    /**
+     * Execute a statement on the writer connection.  The statistics
+     * are counted again if any rows changed.
+     */
+    public int executeUpdate(String sql) {
+        return write(Timer.SQL_UPDATE, () -> {
+                try (Statement statement = connection.createStatement()) {
+                    final int result = statement.executeUpdate(sql);
+                    refreshChanges();
+                    // Any row may have changed, so count again
+                    if (result > 0 && stats.isReady()) countStats();
+                    return result;
+                }
+            });
+    }
+
+    /**
+     * Execute a query on a reader connection.  The readers are query
+     * only, so statements which write will fail.
+     */
+    public List<Map<String, Object>> executeQuery(String sql) {
+        return read(Timer.SQL_QUERY, reader -> {
+                try (Statement statement = reader.readConnection.createStatement();
+                     ResultSet resultSet = statement.executeQuery(sql)) {
+                    final List<Map<String, Object>> result = new ArrayList<>();
+                    final ResultSetMetaData meta = resultSet.getMetaData();
+                    final int columnCount = meta.getColumnCount();
+                    final List<String> columnNames = new ArrayList<>(columnCount);
+                    for (int i = 0; i < columnCount; i += 1) {
+                        columnNames.add(meta.getColumnName(i + 1));
+                    }
+                    while (resultSet.next()) {
+                        final Map<String, Object> entry = new LinkedHashMap<>();
+                        result.add(entry);
+                        for (String columnName : columnNames) {
+                            entry.put(columnName, resultSet.getObject(columnName));
+                        }
+                    }
+                    return result;
+                }
+            });
+    }
+
+    /**
+     * The in-memory statistics.  They are not ready until buildStats
+     * has run.
+     */
+    public StructureStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Count all structures by type and discovered flag, creating the
+     * index this needs first.  Meant to run once on a background
+     * thread.
+     */
+    public void buildStats() {
+        final long start = StructureMetrics.start(Timer.SQL_BUILD_STATS);
+        try {
+            createStatsIndex();
+            countStats();
+        } finally {
+            StructureMetrics.stop(Timer.SQL_BUILD_STATS, start);
+        }
+    }
+
+    /**
+     * Create the index for counting, once per database file.  It uses
+     * a connection of its own, so the writer lock is not held while a
+     * large table is indexed.
+     */
+    private void createStatsIndex() {
+        try (Connection indexConnection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile);
+             Statement statement = indexConnection.createStatement()) {
+            statement.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT);
+            statement.execute("CREATE INDEX IF NOT EXISTS `idx_structures_type_discovered`"
+                              + " ON `structures` (`type`, `discovered`)");
         } catch (SQLException sqle) {
             throw new IllegalStateException(sqle);
         }
-        return result;
     }
 
     /**
-     * Return 2 integers: The number of undiscovered and discovered
-     * instances of that structure type, followed by the total number,
-     * in that order.
+     * Replace the statistics with a fresh count.  Holds the writer
+     * lock so no insert or update can slip in between the count and
+     * the in-memory updates.
      */
-    public int[] getDiscoveredStats(String structureType) {
-        int[] result = new int[3];
-        try {
-            stmtDiscoveredStats.setString(1, structureType);
-            try (ResultSet resultSet = stmtDiscoveredStats.executeQuery()) {
+    private synchronized void countStats() {
+        try (Statement statement = connection.createStatement()) {
+            final Map<String, TypeStats> counts = new HashMap<>();
+            try (ResultSet resultSet = statement.executeQuery("SELECT `type`, `discovered`, COUNT(*) `count`"
+                                                              + " FROM `structures` GROUP BY `type`, `discovered`")) {
                 while (resultSet.next()) {
-                    final int discovered = resultSet.getInt("discovered");
+                    final String type = resultSet.getString("type");
                     final int count = resultSet.getInt("count");
-                    result[discovered] = count;
+                    final int discovered = resultSet.getInt("discovered") != 0 ? count : 0;
+                    counts.merge(type, new TypeStats(count, discovered), TypeStats::plus);
                 }
             }
+            stats.reset(counts);
         } catch (SQLException sqle) {
             throw new IllegalStateException(sqle);
         }
-        result[2] = result[0] + result[1];
-        return result;
     }
 
-    public int executeUpdate(String sql) {
+    /**
+     * A snapshot along with the regions which changed since it was
+     * exported.  Writes add to the dirty set.
+     */
+    private record SnapshotState(StructureSnapshot snapshot, Set<Long> dirty) {
+        boolean isClean(int regionX, int regionZ) {
+            return !dirty.contains(RegionMap.pack(regionX, regionZ));
+        }
+    }
+
+    /**
+     * Create the meta and region_changes tables and the triggers
+     * which fill them, unless they exist.  Once created, the triggers
+     * stay in the file and track every writer.  Must be called before
+     * any snapshot is used.
+     */
+    public synchronized void enableChangeTracking() {
+        final String bump = "UPDATE `meta` SET `value` = `value` + 1 WHERE `name` = 'version';";
+        final String version = "(SELECT `value` FROM `meta` WHERE `name` = 'version')";
+        final String markRefs = "INSERT OR REPLACE INTO `region_changes` (`region_x`, `region_z`, `version`)"
+            + " SELECT `region_x`, `region_z`, " + version + " FROM `struct_refs` WHERE `structure_id` = %s.`id`;";
+        final String markRegion = "INSERT OR REPLACE INTO `region_changes` (`region_x`, `region_z`, `version`)"
+            + " VALUES (%s.`region_x`, %s.`region_z`, " + version + ");";
+        final String markChunk = "INSERT OR REPLACE INTO `region_changes` (`region_x`, `region_z`, `version`)"
+            + " VALUES (%s.`chunk_x` >> 5, %s.`chunk_z` >> 5, " + version + ");";
+        final Map<String, String> triggers = new LinkedHashMap<>();
+        triggers.put("structures_insert", "AFTER INSERT ON `structures` BEGIN " + bump);
+        triggers.put("structures_update", "AFTER UPDATE ON `structures` BEGIN " + bump + markRefs.formatted("NEW"));
+        triggers.put("structures_delete", "AFTER DELETE ON `structures` BEGIN " + bump + markRefs.formatted("OLD"));
+        triggers.put("struct_refs_insert", "AFTER INSERT ON `struct_refs` BEGIN " + bump + markRegion.formatted("NEW", "NEW"));
+        triggers.put("struct_refs_update", "AFTER UPDATE ON `struct_refs` BEGIN " + bump + markRegion.formatted("OLD", "OLD") + markRegion.formatted("NEW", "NEW"));
+        triggers.put("struct_refs_delete", "AFTER DELETE ON `struct_refs` BEGIN " + bump + markRegion.formatted("OLD", "OLD"));
+        triggers.put("biomes_insert", "AFTER INSERT ON `biomes` BEGIN " + bump + markChunk.formatted("NEW", "NEW"));
+        triggers.put("biomes_update", "AFTER UPDATE ON `biomes` BEGIN " + bump + markChunk.formatted("OLD", "OLD") + markChunk.formatted("NEW", "NEW"));
+        triggers.put("biomes_delete", "AFTER DELETE ON `biomes` BEGIN " + bump + markChunk.formatted("OLD", "OLD"));
         try (Statement statement = connection.createStatement()) {
-            return statement.executeUpdate(sql);
+            statement.execute("CREATE TABLE IF NOT EXISTS `meta` ("
+                              + " `name` VARCHAR(255) PRIMARY KEY,"
+                              + " `value` INTEGER NOT NULL"
+                              + ")");
+            statement.execute("INSERT OR IGNORE INTO `meta` (`name`, `value`) VALUES ('version', 0)");
+            // Tells snapshots of a replaced database file apart
+            statement.execute("INSERT OR IGNORE INTO `meta` (`name`, `value`) VALUES ('database_id', "
+                              + ThreadLocalRandom.current().nextLong() + ")");
+            statement.execute("CREATE TABLE IF NOT EXISTS `region_changes` ("
+                              + " `region_x` INTEGER NOT NULL,"
+                              + " `region_z` INTEGER NOT NULL,"
+                              + " `version` INTEGER NOT NULL,"
+                              + " PRIMARY KEY (`region_x`, `region_z`)"
+                              + ")");
+            statement.execute("CREATE INDEX IF NOT EXISTS `idx_region_changes_version` ON `region_changes` (`version`)");
+            statement.execute("CREATE INDEX IF NOT EXISTS `idx_struct_refs_structure_id` ON `struct_refs` (`structure_id`)");
+            for (Map.Entry<String, String> entry : triggers.entrySet()) {
+                statement.execute("CREATE TRIGGER IF NOT EXISTS `track_" + entry.getKey() + "` " + entry.getValue() + " END");
+            }
+            stmtRegionChanges = connection.prepareStatement("SELECT `region_x`, `region_z`, `version` FROM `region_changes` WHERE `version` > ?");
         } catch (SQLException sqle) {
             throw new IllegalStateException(sqle);
         }
     }
 
-    public List<Map<String, Object>> executeQuery(String sql) {
-        try (Statement statement = connection.createStatement();
-             ResultSet resultSet = statement.executeQuery(sql)) {
-            final List<Map<String, Object>> result = new ArrayList<>();
-            final ResultSetMetaData meta = resultSet.getMetaData();
-            final int columnCount = meta.getColumnCount();
-            final List<String> columnNames = new ArrayList<>(columnCount);
-            for (int i = 0; i < columnCount; i += 1) {
-                columnNames.add(meta.getColumnName(i + 1));
+    private static long readMeta(Connection conn, String name) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement("SELECT `value` FROM `meta` WHERE `name` = ?")) {
+            statement.setString(1, name);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) throw new IllegalStateException("Change tracking not enabled");
+                return resultSet.getLong(1);
             }
+        }
+    }
+
+    /**
+     * Read the regions which changed after the given version into the
+     * set.
+     * @return the highest version read, at least since
+     */
+    private long readChanges(long since, Set<Long> result) throws SQLException {
+        long max = since;
+        stmtRegionChanges.setLong(1, since);
+        try (ResultSet resultSet = stmtRegionChanges.executeQuery()) {
             while (resultSet.next()) {
-                final Map<String, Object> entry = new LinkedHashMap<>();
-                result.add(entry);
-                for (String columnName : columnNames) {
-                    entry.put(columnName, resultSet.getObject(columnName));
-                }
+                result.add(RegionMap.pack(resultSet.getInt("region_x"), resultSet.getInt("region_z")));
+                max = Math.max(max, resultSet.getLong("version"));
             }
-            return result;
+        }
+        return max;
+    }
+
+    /**
+     * Mark the regions changed by the last write as dirty, so the
+     * snapshot is no longer used for them.  Called by every write
+     * method after it commits.
+     */
+    private void refreshChanges() {
+        final SnapshotState state = snapshotState;
+        if (state == null) return;
+        try {
+            seenVersion = readChanges(seenVersion, state.dirty());
+        } catch (SQLException sqle) {
+            logger().log(Level.SEVERE, "[" + worldName + "] Reading region changes, dropping snapshot", sqle);
+            snapshotState = null;
+        }
+    }
+
+    /**
+     * Mark the regions changed by other connections as dirty.  The
+     * write methods only see their own changes, so this is polled to
+     * catch those made by other processes or raw SQL.
+     */
+    public synchronized void pollChanges() {
+        refreshChanges();
+    }
+
+    /**
+     * Start using a snapshot.  The regions which changed since it was
+     * exported are read while holding the writer lock, so no change
+     * can slip in between.
+     */
+    private synchronized void install(StructureSnapshot snapshot) throws SQLException {
+        if (readers == null) return;
+        final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+        seenVersion = readChanges(snapshot.getDataVersion(), dirty);
+        snapshotState = new SnapshotState(snapshot, dirty);
+    }
+
+    /**
+     * Open an existing snapshot file, unless it belongs to another
+     * database.  Call after enableChangeTracking.
+     * @return true if the snapshot is in use
+     */
+    public boolean openSnapshot(File file) {
+        if (!file.exists()) return false;
+        try {
+            final StructureSnapshot snapshot = StructureSnapshot.open(worldName, file);
+            final long databaseId;
+            synchronized (this) {
+                databaseId = readMeta(connection, "database_id");
+            }
+            if (snapshot.getDatabaseId() != databaseId) {
+                warn("[" + worldName + "] Snapshot belongs to another database: " + file);
+                return false;
+            }
+            install(snapshot);
+            return true;
         } catch (SQLException sqle) {
             throw new IllegalStateException(sqle);
+        } catch (IllegalStateException ise) {
+            logger().log(Level.WARNING, "[" + worldName + "] Opening snapshot " + file, ise);
+            return false;
+        }
+    }
+
+    /**
+     * Bring the snapshot file up to date with the database.  Regions
+     * which did not change since the current snapshot are copied from
+     * it, the others are exported from a consistent read of the
+     * database.  The new file replaces the old one and is used right
+     * away.  Does nothing if the snapshot is current.
+     *
+     * Blocks while exporting, so call it on a background thread, and
+     * never twice at the same time.
+     * @return the number of regions exported from the database, or -1
+     *   if the snapshot was current
+     */
+    public int updateSnapshot(File file) {
+        final long start = StructureMetrics.start(Timer.SNAPSHOT_EXPORT);
+        final SnapshotState state = snapshotState;
+        final StructureSnapshot previous = state != null ? state.snapshot() : null;
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        int exported = 0;
+        try (Connection exportConnection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile)) {
+            try (Statement statement = exportConnection.createStatement()) {
+                statement.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT);
+                statement.execute("PRAGMA query_only = true");
+            }
+            // One read transaction sees the database at one version
+            exportConnection.setAutoCommit(false);
+            final long databaseId = readMeta(exportConnection, "database_id");
+            final long version = readMeta(exportConnection, "version");
+            final boolean incremental = previous != null && previous.getDatabaseId() == databaseId;
+            if (incremental && previous.getDataVersion() == version) {
+                exportConnection.rollback();
+                return -1;
+            }
+            final Set<Vec2i> changed = new HashSet<>();
+            final Set<Vec2i> regions = new TreeSet<>(Comparator.<Vec2i>comparingInt(v -> v.x).thenComparingInt(v -> v.z));
+            try (Statement statement = exportConnection.createStatement()) {
+                if (incremental) {
+                    regions.addAll(previous.getRegions());
+                    try (ResultSet resultSet = statement.executeQuery("SELECT `region_x`, `region_z` FROM `region_changes`"
+                                                                      + " WHERE `version` > " + previous.getDataVersion())) {
+                        while (resultSet.next()) changed.add(Vec2i.of(resultSet.getInt(1), resultSet.getInt(2)));
+                    }
+                } else {
+                    try (ResultSet resultSet = statement.executeQuery("SELECT DISTINCT `region_x`, `region_z` FROM `struct_refs`"
+                                                                      + " UNION SELECT DISTINCT `chunk_x` >> 5, `chunk_z` >> 5 FROM `biomes`")) {
+                        while (resultSet.next()) changed.add(Vec2i.of(resultSet.getInt(1), resultSet.getInt(2)));
+                    }
+                }
+            }
+            regions.addAll(changed);
+            try (StructureSnapshot.Writer writer = new StructureSnapshot.Writer(tmpFile, regions.size());
+                 PreparedStatement stmtRows = exportConnection.prepareStatement("SELECT s.* FROM `struct_refs` r"
+                                                                                + " JOIN `structures` s ON s.`id` = r.`structure_id`"
+                                                                                + " WHERE r.`region_x` = ? AND r.`region_z` = ?"
+                                                                                + " ORDER BY s.`id`");
+                 PreparedStatement stmtBiomes = exportConnection.prepareStatement(SQL_LOAD_BIOME_COLUMN)) {
+                for (Vec2i region : regions) {
+                    if (!changed.contains(region)) {
+                        writer.copyRegion(previous, region.x, region.z);
+                        continue;
+                    }
+                    final List<StructureSnapshot.Row> rows = new ArrayList<>();
+                    stmtRows.setInt(1, region.x);
+                    stmtRows.setInt(2, region.z);
+                    try (ResultSet resultSet = stmtRows.executeQuery()) {
+                        while (resultSet.next()) {
+                            rows.add(new StructureSnapshot.Row(resultSet.getInt("id"), resultSet.getString("type"),
+                                                               resultSet.getInt("chunk_x"), resultSet.getInt("chunk_z"),
+                                                               resultSet.getInt("ax"), resultSet.getInt("ay"), resultSet.getInt("az"),
+                                                               resultSet.getInt("bx"), resultSet.getInt("by"), resultSet.getInt("bz"),
+                                                               resultSet.getInt("discovered") != 0, resultSet.getString("json"),
+                                                               resultSet.getBytes("children")));
+                        }
+                    }
+                    final String[] biomes = new String[32 * 32];
+                    readRegionBiomes(stmtBiomes, region.x, region.z, (biome, index) -> biomes[index] = biome);
+                    writer.writeRegion(region.x, region.z, rows, biomes);
+                    exported += 1;
+                }
+                writer.finish(databaseId, version);
+            }
+            exportConnection.rollback();
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            install(StructureSnapshot.open(worldName, file));
+            return exported;
+        } catch (SQLException | IOException e) {
+            tmpFile.delete();
+            throw new IllegalStateException(e);
+        } finally {
+            StructureMetrics.stop(Timer.SNAPSHOT_EXPORT, start);
         }
     }
 
+    /**
+     * Look up a structure in the snapshot.
+     * @return the structure, or null if there is no snapshot, it
+     *   does not have the structure, or one of its regions changed
+     */
+    private Structure findInSnapshot(int id) {
+        final SnapshotState state = snapshotState;
+        if (state == null) return null;
+        final long start = StructureMetrics.start(Timer.SNAPSHOT_FIND_STRUCTURE);
+        try {
+            final Structure structure = state.snapshot().findStructure(id);
+            if (structure == null) return null;
+            for (Vec2i region : getRegions(structure.getBoundingBox())) {
+                if (!state.isClean(region.x, region.z)) return null;
+            }
+            return structure;
+        } finally {
+            StructureMetrics.stop(Timer.SNAPSHOT_FIND_STRUCTURE, start);
+        }
+    }
+
+    /**
+     * The snapshot in use, or null.
+     */
+    public StructureSnapshot getSnapshot() {
+        final SnapshotState state = snapshotState;
+        return state != null ? state.snapshot() : null;
+    }
+
+    /**
+     * Get the number of regions which changed since the snapshot was
+     * exported, and are thus read from the database.
+     */
+    public int getDirtyRegionCount() {
+        final SnapshotState state = snapshotState;
+        return state != null ? state.dirty().size() : 0;
+    }
+
     private void updateStructuresTable() {
+        addDiscoveredColumn();
+        addChildrenColumn();
+    }
+
+    private void addChildrenColumn() {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT `children` FROM `structures` LIMIT 1")) {
+            return;
+        } catch (SQLException sqle) {
+            // Column does not exist
+        }
+        final String sql = "ALTER TABLE `structures` ADD COLUMN `children` BLOB";
+        log("[" + worldName + "] Adding children column...");
+        try (Statement statement = connection.createStatement()) {
+            final int result = statement.executeUpdate(sql);
+            log("[" + worldName + "] Added children column => " + result);
+        } catch (SQLException sqle) {
+            logger().log(Level.SEVERE, "[" + worldName + "] Adding children column: " + sql, sqle);
+        }
+    }
+
+    private void addDiscoveredColumn() {
         boolean discoveredColumnExists;
         try (Statement statement = connection.createStatement();
              ResultSet resultSet = statement.executeQuery("SELECT `discovered` FROM `structures` LIMIT 1")) {
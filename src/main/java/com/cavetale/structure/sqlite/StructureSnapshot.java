@@ -0,0 +1,513 @@
+package com.cavetale.structure.sqlite;
+
+import com.cavetale.core.struct.Cuboid;
+import com.cavetale.core.struct.Vec2i;
+import com.cavetale.structure.cache.Structure;
+import com.cavetale.structure.cache.StructureChildren;
+import com.cavetale.structure.cache.StructurePart;
+import com.cavetale.structure.sqlite.SQLiteDataStore.RegionStructures;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.logging.Level;
+import lombok.Getter;
+import org.bukkit.NamespacedKey;
+import org.bukkit.block.Biome;
+import static com.cavetale.structure.StructurePlugin.logger;
+
+/**
+ * Read-only binary copy of a structures.db file, mapped into memory.
+ * Region loads and point lookups read the records in place instead
+ * of going through JDBC.  SQLite stays the source of truth: the
+ * snapshot remembers the change counter of the database it was
+ * exported from, and SQLiteDataStore only uses it for regions which
+ * did not change since.
+ *
+ * All numbers are big endian.  The file is laid out as follows:
+ * - Header: magic, format, database id (long), data version (long),
+ *   region count, id count, id index offset, reserved
+ * - Region directory, sorted by region x, then z: region x, region
+ *   z, block offset, block length
+ * - Region blocks, see below
+ * - Id index, sorted by id: structure id, record offset, block
+ *   offset.  A structure in several regions has a record in each
+ *   block, the index points to the first one.
+ *
+ * Each region block is self contained, so unchanged regions can be
+ * copied from one snapshot to the next as they are:
+ * - Type palette: count (short), then each type name
+ * - Biome palette: count (short), then each biome name.  If the
+ *   palette is not empty, 1024 bytes follow, one per chunk, which
+ *   are the palette index plus one, or 0 where unknown.
+ * - Structure count (int), then the records: id, type palette index
+ *   (short), chunk x and z, bounding box as 6 ints, discovered
+ *   (byte), json length (int) and UTF-8 bytes, children length (int,
+ *   -1 for none) and bytes in the format of StructureChildren
+ *
+ * Names are a length (short) followed by UTF-8 bytes.
+ */
+public final class StructureSnapshot {
+    private static final int MAGIC = 0x53545353;
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 40;
+    private static final int DIRECTORY_ENTRY_SIZE = 16;
+    private static final int INDEX_ENTRY_SIZE = 12;
+    /** Size of a record without the json and children bytes. */
+    private static final int RECORD_FIXED_SIZE = 4 + 2 + 4 * 8 + 1 + 4 + 4;
+    private final String worldName;
+    @Getter private final File file;
+    private final MappedByteBuffer buffer;
+    @Getter private final long databaseId;
+    @Getter private final long dataVersion;
+    @Getter private final int regionCount;
+    private final int idCount;
+    private final int indexOffset;
+
+    private StructureSnapshot(final String worldName, final File file, final MappedByteBuffer buffer) {
+        this.worldName = worldName;
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IllegalStateException("Not a structure snapshot: " + file);
+        }
+        if (buffer.getInt(4) != FORMAT) {
+            throw new IllegalStateException("Unknown snapshot format " + buffer.getInt(4) + ": " + file);
+        }
+        this.databaseId = buffer.getLong(8);
+        this.dataVersion = buffer.getLong(16);
+        this.regionCount = buffer.getInt(24);
+        this.idCount = buffer.getInt(28);
+        this.indexOffset = buffer.getInt(32);
+        if ((long) indexOffset + (long) idCount * INDEX_ENTRY_SIZE > buffer.capacity()) {
+            throw new IllegalStateException("Truncated snapshot: " + file);
+        }
+    }
+
+    /**
+     * Thrown when a snapshot does not fit in one mapping, which is
+     * limited to 2 GiB.  Exporting again will not help.
+     */
+    public static final class TooLargeException extends IllegalStateException {
+        public TooLargeException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Map a snapshot file.
+     * @throws IllegalStateException if the file cannot be read or is
+     *   not a valid snapshot
+     */
+    public static StructureSnapshot open(String worldName, File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new TooLargeException("Snapshot too large: " + file);
+            }
+            // The mapping stays valid after the channel is closed
+            return new StructureSnapshot(worldName, file, channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()));
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    private static int compareRegions(int ax, int az, int bx, int bz) {
+        final int result = Integer.compare(ax, bx);
+        return result != 0 ? result : Integer.compare(az, bz);
+    }
+
+    /**
+     * Find a region in the directory.
+     * @return the directory index, or -1
+     */
+    private int findRegion(int regionX, int regionZ) {
+        int lo = 0;
+        int hi = regionCount - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int entry = HEADER_SIZE + mid * DIRECTORY_ENTRY_SIZE;
+            final int cmp = compareRegions(buffer.getInt(entry), buffer.getInt(entry + 4), regionX, regionZ);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int regionXAt(int index) {
+        return buffer.getInt(HEADER_SIZE + index * DIRECTORY_ENTRY_SIZE);
+    }
+
+    private int regionZAt(int index) {
+        return buffer.getInt(HEADER_SIZE + index * DIRECTORY_ENTRY_SIZE + 4);
+    }
+
+    private int blockOffsetAt(int index) {
+        return buffer.getInt(HEADER_SIZE + index * DIRECTORY_ENTRY_SIZE + 8);
+    }
+
+    private int blockLengthAt(int index) {
+        return buffer.getInt(HEADER_SIZE + index * DIRECTORY_ENTRY_SIZE + 12);
+    }
+
+    private String readName(int offset) {
+        final byte[] bytes = new byte[buffer.getShort(offset) & 0xFFFF];
+        buffer.get(offset + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int nameSize(ByteBuffer buffer, int offset) {
+        return 2 + (buffer.getShort(offset) & 0xFFFF);
+    }
+
+    private static int recordSize(ByteBuffer buffer, int offset) {
+        final int jsonLength = buffer.getInt(offset + 39);
+        final int childrenLength = buffer.getInt(offset + 43 + jsonLength);
+        return RECORD_FIXED_SIZE + jsonLength + Math.max(0, childrenLength);
+    }
+
+    /**
+     * The decoded palettes at the start of a block.
+     */
+    private record BlockHeader(NamespacedKey[] types, String[] biomes, int biomeIndexOffset, int structuresOffset) { }
+
+    private BlockHeader readBlockHeader(int offset) {
+        final NamespacedKey[] types = new NamespacedKey[buffer.getShort(offset) & 0xFFFF];
+        offset += 2;
+        for (int i = 0; i < types.length; i += 1) {
+            types[i] = NamespacedKey.fromString(readName(offset));
+            offset += nameSize(buffer, offset);
+        }
+        final String[] biomes = new String[buffer.getShort(offset) & 0xFFFF];
+        offset += 2;
+        for (int i = 0; i < biomes.length; i += 1) {
+            biomes[i] = readName(offset);
+            offset += nameSize(buffer, offset);
+        }
+        final int biomeIndexOffset = offset;
+        if (biomes.length > 0) offset += 32 * 32;
+        return new BlockHeader(types, biomes, biomeIndexOffset, offset);
+    }
+
+    private Structure readStructure(int offset, NamespacedKey key) {
+        final int id = buffer.getInt(offset);
+        final Vec2i chunk = Vec2i.of(buffer.getInt(offset + 6), buffer.getInt(offset + 10));
+        final Cuboid boundingBox = new Cuboid(buffer.getInt(offset + 14), buffer.getInt(offset + 18), buffer.getInt(offset + 22),
+                                              buffer.getInt(offset + 26), buffer.getInt(offset + 30), buffer.getInt(offset + 34));
+        final boolean discovered = buffer.get(offset + 38) != 0;
+        final byte[] jsonBytes = new byte[buffer.getInt(offset + 39)];
+        buffer.get(offset + 43, jsonBytes);
+        final String json = new String(jsonBytes, StandardCharsets.UTF_8);
+        final int childrenOffset = offset + 43 + jsonBytes.length;
+        final int childrenLength = buffer.getInt(childrenOffset);
+        List<StructurePart> children = null;
+        if (childrenLength >= 0) {
+            final byte[] childData = new byte[childrenLength];
+            buffer.get(childrenOffset + 4, childData);
+            try {
+                children = StructureChildren.decode(childData);
+            } catch (IllegalArgumentException iae) {
+                logger().log(Level.SEVERE, "[" + worldName + "] Decoding children of structure " + id, iae);
+            }
+        }
+        Structure structure = children != null
+            ? new Structure(worldName, key, chunk, boundingBox, json, discovered, children)
+            : new Structure(worldName, key, chunk, boundingBox, json, discovered);
+        structure.setId(id);
+        return structure;
+    }
+
+    /**
+     * Check if the snapshot has a block for the region.  Regions
+     * without one have neither structures nor biomes.
+     */
+    public boolean containsRegion(int regionX, int regionZ) {
+        return findRegion(regionX, regionZ) >= 0;
+    }
+
+    /**
+     * Fill in a region the way SQLiteDataStore#loadRegions does.
+     * @param loaded structures which were already read for other
+     *   regions of the same call, by id.  New ones are added.
+     * @param types the structure types to read, or null for all
+     * @param parseBiome looks up biomes by name
+     */
+    void loadRegion(RegionStructures region, Map<Integer, Structure> loaded, IntPredicate isCached, List<String> types,
+                    Function<String, Biome> parseBiome) {
+        final int index = findRegion(region.regionX(), region.regionZ());
+        if (index < 0) return;
+        final BlockHeader header = readBlockHeader(blockOffsetAt(index));
+        boolean[] accepted = null;
+        if (types != null) {
+            accepted = new boolean[header.types().length];
+            for (int i = 0; i < accepted.length; i += 1) {
+                accepted[i] = header.types()[i] != null && types.contains(header.types()[i].toString());
+            }
+        } else if (header.biomes().length > 0) {
+            final Biome[] palette = new Biome[header.biomes().length];
+            for (int i = 0; i < palette.length; i += 1) {
+                palette[i] = parseBiome.apply(header.biomes()[i]);
+            }
+            for (int chunk = 0; chunk < 32 * 32; chunk += 1) {
+                final int paletteIndex = buffer.get(header.biomeIndexOffset() + chunk) & 0xFF;
+                if (paletteIndex != 0) region.biomes()[chunk] = palette[paletteIndex - 1];
+            }
+        }
+        int offset = header.structuresOffset();
+        final int count = buffer.getInt(offset);
+        offset += 4;
+        for (int i = 0; i < count; i += 1) {
+            final int size = recordSize(buffer, offset);
+            final int id = buffer.getInt(offset);
+            final int type = buffer.getShort(offset + 4) & 0xFFFF;
+            if (accepted == null || accepted[type]) {
+                Structure structure = loaded.get(id);
+                if (structure == null && isCached.test(id)) {
+                    region.cachedIds().add(id);
+                } else {
+                    if (structure == null) {
+                        structure = readStructure(offset, header.types()[type]);
+                        loaded.put(id, structure);
+                    }
+                    region.structures().add(structure);
+                }
+            }
+            offset += size;
+        }
+    }
+
+    /**
+     * Find a structure by id.
+     * @return the structure, or null if it is not in the snapshot
+     */
+    Structure findStructure(int id) {
+        int lo = 0;
+        int hi = idCount - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int entry = indexOffset + mid * INDEX_ENTRY_SIZE;
+            final int other = buffer.getInt(entry);
+            if (other < id) {
+                lo = mid + 1;
+            } else if (other > id) {
+                hi = mid - 1;
+            } else {
+                final int recordOffset = buffer.getInt(entry + 4);
+                final BlockHeader header = readBlockHeader(buffer.getInt(entry + 8));
+                return readStructure(recordOffset, header.types()[buffer.getShort(recordOffset + 4) & 0xFFFF]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the regions of the directory, in order.
+     */
+    List<Vec2i> getRegions() {
+        final List<Vec2i> result = new ArrayList<>(regionCount);
+        for (int i = 0; i < regionCount; i += 1) {
+            result.add(Vec2i.of(regionXAt(i), regionZAt(i)));
+        }
+        return result;
+    }
+
+    /**
+     * One structure row of the data store, as written to a block.
+     */
+    record Row(int id, String type, int chunkX, int chunkZ,
+               int ax, int ay, int az, int bx, int by, int bz,
+               boolean discovered, String json, byte[] children) { }
+
+    /**
+     * Writes a new snapshot file.  The regions must be added in the
+     * order of the directory.  The header and directory are written
+     * last, so a file which was not finished is never valid.
+     */
+    static final class Writer implements AutoCloseable {
+        private final FileChannel channel;
+        private final DataOutputStream out;
+        private final int blocksOffset;
+        private final List<int[]> directory = new ArrayList<>();
+        /** Entries of id, record offset, block offset. */
+        private int[] index = new int[3 * 1024];
+        private int indexSize;
+
+        /**
+         * @param regionCount the exact number of regions which will
+         *   be added
+         */
+        Writer(final File file, final int regionCount) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                            StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+            this.blocksOffset = HEADER_SIZE + regionCount * DIRECTORY_ENTRY_SIZE;
+            channel.position(blocksOffset);
+            this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+        }
+
+        private int position() {
+            final long result = (long) blocksOffset + out.size();
+            if (result > Integer.MAX_VALUE) throw new TooLargeException("Snapshot too large");
+            return (int) result;
+        }
+
+        private void addIndex(int id, int recordOffset, int blockOffset) {
+            if (indexSize + 3 > index.length) index = Arrays.copyOf(index, index.length * 2);
+            index[indexSize++] = id;
+            index[indexSize++] = recordOffset;
+            index[indexSize++] = blockOffset;
+        }
+
+        private void writeName(String name) throws IOException {
+            final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+
+        /**
+         * Write a fresh block.
+         * @param biomes the biome name of each chunk, indexed like
+         *   RegionStructures#biomes, null where unknown
+         */
+        void writeRegion(int regionX, int regionZ, List<Row> rows, String[] biomes) throws IOException {
+            final int blockOffset = position();
+            final List<String> types = new ArrayList<>();
+            for (Row row : rows) {
+                if (!types.contains(row.type())) types.add(row.type());
+            }
+            out.writeShort(types.size());
+            for (String type : types) writeName(type);
+            final List<String> biomePalette = new ArrayList<>();
+            for (String biome : biomes) {
+                if (biome != null && !biomePalette.contains(biome)) biomePalette.add(biome);
+            }
+            if (biomePalette.size() > 255) throw new IllegalStateException("Too many biomes in region " + regionX + "," + regionZ);
+            out.writeShort(biomePalette.size());
+            for (String biome : biomePalette) writeName(biome);
+            if (!biomePalette.isEmpty()) {
+                for (String biome : biomes) {
+                    out.writeByte(biome != null ? biomePalette.indexOf(biome) + 1 : 0);
+                }
+            }
+            out.writeInt(rows.size());
+            for (Row row : rows) {
+                addIndex(row.id(), position(), blockOffset);
+                out.writeInt(row.id());
+                out.writeShort(types.indexOf(row.type()));
+                out.writeInt(row.chunkX());
+                out.writeInt(row.chunkZ());
+                out.writeInt(row.ax());
+                out.writeInt(row.ay());
+                out.writeInt(row.az());
+                out.writeInt(row.bx());
+                out.writeInt(row.by());
+                out.writeInt(row.bz());
+                out.writeByte(row.discovered() ? 1 : 0);
+                final byte[] json = row.json().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(json.length);
+                out.write(json);
+                if (row.children() != null) {
+                    out.writeInt(row.children().length);
+                    out.write(row.children());
+                } else {
+                    out.writeInt(-1);
+                }
+            }
+            directory.add(new int[] {regionX, regionZ, blockOffset, position() - blockOffset});
+        }
+
+        /**
+         * Copy an unchanged block from the previous snapshot.
+         */
+        void copyRegion(StructureSnapshot from, int regionX, int regionZ) throws IOException {
+            final int index = from.findRegion(regionX, regionZ);
+            if (index < 0) throw new IllegalArgumentException("Region not in snapshot: " + regionX + "," + regionZ);
+            final int oldOffset = from.blockOffsetAt(index);
+            final int length = from.blockLengthAt(index);
+            final int blockOffset = position();
+            final byte[] bytes = new byte[length];
+            from.buffer.get(oldOffset, bytes);
+            out.write(bytes);
+            // Walk the records for the index
+            final ByteBuffer block = ByteBuffer.wrap(bytes);
+            int offset = 0;
+            final int typeCount = block.getShort(offset) & 0xFFFF;
+            offset += 2;
+            for (int i = 0; i < typeCount; i += 1) offset += nameSize(block, offset);
+            final int biomeCount = block.getShort(offset) & 0xFFFF;
+            offset += 2;
+            for (int i = 0; i < biomeCount; i += 1) offset += nameSize(block, offset);
+            if (biomeCount > 0) offset += 32 * 32;
+            final int count = block.getInt(offset);
+            offset += 4;
+            for (int i = 0; i < count; i += 1) {
+                addIndex(block.getInt(offset), blockOffset + offset, blockOffset);
+                offset += recordSize(block, offset);
+            }
+            directory.add(new int[] {regionX, regionZ, blockOffset, length});
+        }
+
+        /**
+         * Write the id index, the directory and the header.
+         */
+        void finish(long databaseId, long dataVersion) throws IOException {
+            // Sort the index entries by id, keeping the first of each
+            final int entryCount = indexSize / 3;
+            final long[] order = new long[entryCount];
+            for (int i = 0; i < entryCount; i += 1) {
+                order[i] = ((long) index[i * 3] << 32) | i;
+            }
+            Arrays.sort(order);
+            final int indexOffset = position();
+            int idCount = 0;
+            int lastId = 0;
+            for (int i = 0; i < entryCount; i += 1) {
+                final int entry = (int) order[i];
+                final int id = index[entry * 3];
+                if (idCount > 0 && id == lastId) continue;
+                out.writeInt(id);
+                out.writeInt(index[entry * 3 + 1]);
+                out.writeInt(index[entry * 3 + 2]);
+                idCount += 1;
+                lastId = id;
+            }
+            out.flush();
+            final ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE + directory.size() * DIRECTORY_ENTRY_SIZE);
+            head.putInt(MAGIC);
+            head.putInt(FORMAT);
+            head.putLong(databaseId);
+            head.putLong(dataVersion);
+            head.putInt(directory.size());
+            head.putInt(idCount);
+            head.putInt(indexOffset);
+            head.putInt(0);
+            for (int[] entry : directory) {
+                for (int value : entry) head.putInt(value);
+            }
+            head.flip();
+            if (head.limit() != blocksOffset) throw new IllegalStateException("Region count mismatch");
+            channel.write(head, 0L);
+            channel.force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.cavetale.structure.sqlite;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Structure counts per type of one world, kept in memory.  Built once
+ * from the database and then updated by the data store whenever it
+ * inserts a structure or changes a discovered flag.
+ *
+ * May be read from any thread.  Until the initial build is done,
+ * isReady returns false and all counts are 0.
+ */
+public final class StructureStats {
+    private final Map<String, TypeStats> types = new ConcurrentHashMap<>();
+    private volatile boolean ready;
+
+    public record TypeStats(int total, int discovered) {
+        public int undiscovered() {
+            return total - discovered;
+        }
+
+        TypeStats plus(TypeStats other) {
+            return new TypeStats(total + other.total, discovered + other.discovered);
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Get the counts of one type, or null if there are no structures
+     * of that type.
+     */
+    public TypeStats get(String type) {
+        return types.get(type);
+    }
+
+    /**
+     * Get a copy of all types with at least one structure.
+     */
+    public Set<String> getTypes() {
+        return Set.copyOf(types.keySet());
+    }
+
+    /**
+     * Get a copy of all counts.
+     */
+    public Map<String, TypeStats> getAll() {
+        return Map.copyOf(types);
+    }
+
+    protected void reset(Map<String, TypeStats> counts) {
+        types.clear();
+        types.putAll(counts);
+        ready = true;
+    }
+
+    protected void add(String type, int total, int discovered) {
+        types.merge(type, new TypeStats(total, discovered), TypeStats::plus);
+    }
+}
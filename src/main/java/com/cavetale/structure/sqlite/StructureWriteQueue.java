@@ -0,0 +1,83 @@
+package com.cavetale.structure.sqlite;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import lombok.RequiredArgsConstructor;
+import static com.cavetale.structure.StructurePlugin.logger;
+
+/**
+ * Write-behind queue for structure updates.  Repeated writes to the
+ * same structure are coalesced so only the latest values are saved.
+ * The queue is filled on the main thread and flushed in one
+ * transaction, usually on a background thread.
+ */
+@RequiredArgsConstructor
+public final class StructureWriteQueue {
+    private final String worldName;
+    private final SQLiteDataStore dataStore;
+    private final Map<Integer, PendingWrite> pending = new ConcurrentHashMap<>();
+
+    /**
+     * The latest values of one structure which are not saved yet.
+     * A null field means that value is unchanged.  The type is only
+     * set along with discovered, so the statistics can be updated.
+     */
+    public record PendingWrite(int id, String json, Boolean discovered, String type) {
+        /**
+         * Overlay the newer write on top of this one.
+         */
+        public PendingWrite with(PendingWrite newer) {
+            return new PendingWrite(id,
+                                    newer.json != null ? newer.json : json,
+                                    newer.discovered != null ? newer.discovered : discovered,
+                                    newer.type != null ? newer.type : type);
+        }
+    }
+
+    public void queueJson(int id, String json) {
+        queue(new PendingWrite(id, json, null, null));
+    }
+
+    public void queueDiscovered(int id, String type, boolean discovered) {
+        queue(new PendingWrite(id, null, discovered, type));
+    }
+
+    private void queue(PendingWrite write) {
+        pending.merge(write.id(), write, PendingWrite::with);
+    }
+
+    /**
+     * Get the values not saved yet, or null.
+     */
+    public PendingWrite getPending(int id) {
+        return pending.get(id);
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Save everything queued so far in one transaction.  The writes
+     * stay pending until they are committed, so structures loaded in
+     * the meantime still get the unsaved values.  Writes queued during
+     * the flush are left for the next one.  If saving fails, nothing
+     * is removed.  Blocks while another flush is in progress.
+     */
+    public synchronized void flush() {
+        if (pending.isEmpty()) return;
+        final List<PendingWrite> writes = List.copyOf(pending.values());
+        try {
+            dataStore.updateStructures(writes);
+        } catch (RuntimeException re) {
+            logger().log(Level.SEVERE, "[" + worldName + "] Flushing " + writes.size() + " structure writes", re);
+            return;
+        }
+        for (PendingWrite write : writes) {
+            // Unless a newer write replaced it
+            pending.remove(write.id(), write);
+        }
+    }
+}